@@ -0,0 +1,188 @@
+package com.mts.rating.editor;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Вызовы одной процедуры, отправляемые одним анонимным PL/SQL-блоком. addBatch у CallableStatement
+ * Oracle JDBC все равно выполняет по одному обращению к БД на вызов, блок из N вызовов - одно обращение.
+ * <p>
+ * Вызовы выполняются по порядку до первой ошибки: упавший откатывается к точке сохранения перед ним
+ * (как отдельный вызов), следующие не выполняются. Если процедура сама завершила транзакцию, точки
+ * сохранения уже нет: откат пропускается, а ошибка и номер вызова все равно возвращаются. Ошибка передается
+ * BatchUpdateException, updateCounts которого, как у executeBatch, заканчиваются упавшим вызовом (EXECUTE_FAILED).
+ */
+final class CallBatch implements AutoCloseable {
+
+	//текст до этой длины передаем setString: 8191 символ - не больше 32767 байт в UTF-8
+	private final static int MAX_STRING_BIND = 8191;
+	private final static int CLOB_INITIAL_SIZE = 16384;
+
+	private final Connection connection;
+	private final String procedure;
+	private final int size;
+	private final int types[];
+	private final List<Object[]> calls = new ArrayList<>();
+	//блок на size вызовов; неполный последний готовится отдельно
+	private CallableStatement statement;
+
+	/**
+	 * @param procedure имя процедуры, например rdp.update_price
+	 * @param size сколько вызовов отправлять одним блоком
+	 * @param types java.sql.Types параметров процедуры по порядку
+	 */
+	CallBatch(Connection connection, String procedure, int size, int... types) {
+		this.connection = connection;
+		this.procedure = procedure;
+		this.size = size;
+		this.types = types;
+	}
+
+	/**
+	 * Добавляет вызов со значениями параметров по порядку; отправляет его execute.
+	 */
+	void add(Object... values) {
+		calls.add(values);
+	}
+
+	int size() {
+		return calls.size();
+	}
+
+	boolean isEmpty() {
+		return calls.isEmpty();
+	}
+
+	void execute() throws SQLException {
+		if (calls.isEmpty()) return;
+		try {
+			CallableStatement block;
+			if (calls.size() == size) {
+				if (statement == null) {
+					statement = connection.prepareCall(block(size));
+				}
+				block = statement;
+			} else {
+				block = connection.prepareCall(block(calls.size()));
+			}
+			try {
+				int index = 1;
+				for (Object values[] : calls) {
+					bind(block, index, types, values);
+					index += types.length;
+				}
+				block.registerOutParameter(index, Types.INTEGER);
+				block.registerOutParameter(index + 1, Types.INTEGER);
+				block.registerOutParameter(index + 2, Types.VARCHAR);
+				block.execute();
+				int failed = block.getInt(index);
+				if (failed > 0) {
+					int counts[] = new int[failed];
+					Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+					counts[failed - 1] = Statement.EXECUTE_FAILED;
+					throw new BatchUpdateException(block.getString(index + 2), null, block.getInt(index + 1), counts);
+				}
+			} finally {
+				if (block != statement) {
+					block.close();
+				}
+			}
+		} finally {
+			calls.clear();
+		}
+	}
+
+	private String block(int count) {
+		StringBuilder call = new StringBuilder(procedure).append('(');
+		for (int i = 0; i < types.length; i++) {
+			call.append(i == 0 ? "?" : ",?");
+		}
+		call.append(");\n");
+		StringBuilder block = new StringBuilder("declare\n i pls_integer := 0;\n c pls_integer := 0;\n e varchar2(4000);\nbegin\n begin\n");
+		for (int i = 1; i <= count; i++) {
+			block.append("  i := ").append(i).append("; savepoint call_batch; ").append(call);
+		}
+		//ошибку запоминаем до отката: ORA-01086 (точки сохранения нет) не должна ее подменить
+		block.append("  i := 0;\n exception when others then\n  c := -sqlcode; e := sqlerrm;\n");
+		block.append("  begin rollback to call_batch; exception when others then null; end;\n end;\n");
+		block.append(" ? := i; ? := c; ? := e;\nend;");
+		return block.toString();
+	}
+
+	/**
+	 * Задает values параметрам statement начиная с first; строки и Text - через setText.
+	 */
+	static void bind(CallableStatement statement, int first, int types[], Object values[]) throws SQLException {
+		for (int i = 0; i < types.length; i++) {
+			Object value = values[i];
+			if (value == null) {
+				statement.setNull(first + i, types[i]);
+			} else if (value instanceof String) {
+				setText(statement, first + i, (String) value);
+			} else if (value instanceof Text) {
+				setText(statement, first + i, (Text) value);
+			} else {
+				statement.setObject(first + i, value, types[i]);
+			}
+		}
+	}
+
+	/**
+	 * Передает текст (в том числе в CLOB-параметр) без временного LOB: короткий - строкой,
+	 * длинный (setString в PL/SQL ограничен 32767 байтами) - потоком через setCharacterStream.
+	 */
+	static void setText(CallableStatement statement, int index, String text) throws SQLException {
+		if (text == null || text.length() <= MAX_STRING_BIND) {
+			statement.setString(index, text);
+		} else {
+			statement.setCharacterStream(index, new StringReader(text), text.length());
+		}
+	}
+
+	static void setText(CallableStatement statement, int index, Text text) throws SQLException {
+		if (text.size() <= MAX_STRING_BIND) {
+			statement.setString(index, text.toString());
+		} else {
+			statement.setCharacterStream(index, text.reader(), text.size());
+		}
+	}
+
+	/**
+	 * Текст параметра, записанный через Writer (например сериализатором в Appendable):
+	 * передается потоком прямо из буфера, без сборки строки.
+	 */
+	static final class Text extends CharArrayWriter {
+
+		Text() {
+			super(CLOB_INITIAL_SIZE);
+		}
+
+		Reader reader() {
+			return new CharArrayReader(buf, 0, count);
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		calls.clear();
+		if (statement != null) {
+			try {
+				statement.close();
+			} finally {
+				statement = null;
+			}
+		}
+	}
+
+}
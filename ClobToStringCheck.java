@@ -0,0 +1,127 @@
+package com.mts.rating.editor;
+
+import javax.sql.rowset.serial.SerialClob;
+import javax.sql.rowset.serial.SerialException;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.Random;
+
+/**
+ * Проверка Processor.clobToString: текст CLOB (SerialClob) должен возвращаться без изменений - с переводами
+ * строк \n, \r, \r\n, кириллицей и суррогатными парами, на длинах вокруг CLOB_SUBSTRING_LENGTH и
+ * CLOB_BUFFER_SIZE, в том числе когда поток отдает символы короткими порциями.
+ * Запуск: java com.mts.rating.editor.ClobToStringCheck [количество] [seed]; код возврата 1 при расхождении.
+ */
+final class ClobToStringCheck {
+
+	private static final int MAX_REPORTED = 20;
+	private static final String ALPHABET = "ab1@|{}\n\r\tЖя†";
+	//U+1F600: пара символов в UTF-16
+	private static final String SURROGATE_PAIR = new String(Character.toChars(0x1F600));
+
+	private final Random random;
+	private int checked;
+	private int failed;
+
+	private ClobToStringCheck(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public static void main(String[] args) throws SQLException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		ClobToStringCheck check = new ClobToStringCheck(seed);
+		int lengths[] = {
+				0, 1, 2, 5,
+				Processor.CLOB_BUFFER_SIZE - 1, Processor.CLOB_BUFFER_SIZE, Processor.CLOB_BUFFER_SIZE + 1,
+				Processor.CLOB_SUBSTRING_LENGTH - 1, Processor.CLOB_SUBSTRING_LENGTH, Processor.CLOB_SUBSTRING_LENGTH + 1,
+				2 * Processor.CLOB_SUBSTRING_LENGTH + 1, 100000
+		};
+		for (int length : lengths) {
+			check.compare(check.text(length));
+			//суррогатная пара на границе getSubString и блока потока
+			check.compare(check.pairAt(length, Processor.CLOB_SUBSTRING_LENGTH - 1));
+			check.compare(check.pairAt(length, Processor.CLOB_BUFFER_SIZE - 1));
+		}
+		for (int i = 0; i < count; i++) {
+			check.compare(check.text(check.random.nextInt(3 * Processor.CLOB_SUBSTRING_LENGTH)));
+		}
+		if (! "".equals(Processor.clobToString(null))) {
+			check.failed++;
+			System.out.println("null: expected empty string");
+		}
+		System.out.println("seed " + seed + ": checked " + check.checked + ", failed " + check.failed);
+		if (check.failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private String text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		while (text.length() < length) {
+			if (random.nextInt(50) == 0 && text.length() + 2 <= length) {
+				text.append(SURROGATE_PAIR);
+			} else if (random.nextInt(50) == 0 && text.length() + 2 <= length) {
+				text.append("\r\n");
+			} else {
+				text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+		}
+		return text.toString();
+	}
+
+	private String pairAt(int length, int index) {
+		if (length < index + 2) {
+			return text(length);
+		}
+		String text = text(length);
+		return text.substring(0, index) + SURROGATE_PAIR + text.substring(index + 2);
+	}
+
+	private void compare(String text) throws SQLException {
+		compare(text, new SerialClob(text.toCharArray()), "");
+		compare(text, new ChunkedClob(text.toCharArray(), 1 + random.nextInt(100)), " (chunked)");
+	}
+
+	private void compare(String text, SerialClob clob, String what) {
+		String actual = Processor.clobToString(clob);
+		checked++;
+		if (! text.equals(actual)) {
+			if (failed++ < MAX_REPORTED) {
+				int i = 0;
+				while (i < text.length() && i < actual.length() && text.charAt(i) == actual.charAt(i)) {
+					i++;
+				}
+				System.out.println("length " + text.length() + what + ": actual length " + actual.length() + ", first difference at " + i);
+			}
+		}
+	}
+
+	/**
+	 * CLOB, поток которого отдает не больше chunk символов за вызов read.
+	 */
+	private static final class ChunkedClob extends SerialClob {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int chunk;
+
+		ChunkedClob(char[] text, int chunk) throws SQLException {
+			super(text);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public Reader getCharacterStream() throws SerialException {
+			return new FilterReader(super.getCharacterStream()) {
+				@Override
+				public int read(char[] buffer, int offset, int length) throws IOException {
+					return super.read(buffer, offset, Math.min(length, chunk));
+				}
+			};
+		}
+	}
+
+}
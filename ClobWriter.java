@@ -0,0 +1,45 @@
+package com.mts.rating.component;
+
+import java.io.IOException;
+
+/**
+ * Приемник сериализации CLOB: пишет в переданный Appendable (StringBuilder, Writer, Clob)
+ * и считает записанные символы, чтобы узлы не собирали промежуточные строки.
+ */
+final class ClobWriter implements Appendable {
+
+	private final Appendable out;
+	private long length;
+
+	ClobWriter(Appendable out) {
+		this.out = out;
+	}
+
+	long length() {
+		return length;
+	}
+
+	@Override
+	public ClobWriter append(CharSequence csq) throws IOException {
+		if (csq == null) csq = "null";
+		out.append(csq);
+		length += csq.length();
+		return this;
+	}
+
+	@Override
+	public ClobWriter append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null) csq = "null";
+		out.append(csq, start, end);
+		length += end - start;
+		return this;
+	}
+
+	@Override
+	public ClobWriter append(char c) throws IOException {
+		out.append(c);
+		length++;
+		return this;
+	}
+
+}
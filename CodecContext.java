@@ -0,0 +1,10 @@
+package com.mts.rating.component;
+
+/**
+ * Состояние разбора/сборки CLOB: текущая версия (VER:xx), от которой зависят ветки шаблона.
+ */
+class CodecContext {
+
+	String version = "";
+
+}
@@ -1,6 +1,5 @@
 package com.mts.rating.component;
 
-import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.PathNotFoundException;
 import com.mts.rating.migration.DefaultObject;
 import com.mts.rating.migration.DefaultObjectService;
@@ -8,8 +7,15 @@ import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
 import net.minidev.json.JSONValue;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 
 public abstract class ComponentParameters {
 
@@ -17,6 +23,10 @@ public abstract class ComponentParameters {
 
 	private String program;
 	private JSONObject object;
+	//изменения текущего вызова update
+	private UpdateReport report;
+	//простые значения текущего вызова update, еще не записанные: родитель -> имя -> значение
+	private Map<String,Map<String,Object>> pending;
 
 	public ComponentParameters(String program) {
 		this.program = program;
@@ -30,12 +40,29 @@ public abstract class ComponentParameters {
 		this.object = object;
 	}
 
+	/**
+	 * Сбрасывает разобранный объект, чтобы экземпляр можно было использовать для следующей цены той же программы.
+	 */
+	public void reset() {
+		this.object = null;
+		this.report = null;
+		this.pending = null;
+	}
+
 	public void parseObject(String source) {
 		this.object = (JSONObject) JSONValue.parse(source);
 	}
 
 	public String serialize() {
-		return RatingComponentFactory.createRatingComponent(program).serialize(object);
+		return RatingComponentRegistry.get(program).serialize(object);
+	}
+
+	public void serialize(Appendable out) throws IOException {
+		RatingComponentRegistry.get(program).serialize(object, out);
+	}
+
+	public void writeJSONString(Appendable out) throws IOException {
+		object.writeJSONString(out);
 	}
 
 	@Override
@@ -46,7 +73,7 @@ public abstract class ComponentParameters {
 	protected Object getByKey(String key) {
 		Object result;
 		try {
-			result = JsonPath.read(object, "$." + key);
+			result = KeyPath.of(key).read(object);
 		} catch (PathNotFoundException e) {
 			result = null;
 		}
@@ -93,12 +120,124 @@ public abstract class ComponentParameters {
 	}
 
 	protected void updateSimple(String parent, String name, Object value) {
+		JSONObject param = getParam(parent);
+		if (param != null) {
+			put(param, parent, name, value);
+		}
+	}
+
+	private JSONObject getParam(String parent) {
 		JSONObject param = get(parent);
 		if (param == null || isIncomplete(parent, param)) {
 			param = (JSONObject) initialize(parent);
-			if (param == null) return;
 		}
-		param.put(name, value);
+		return param;
+	}
+
+	private void put(JSONObject param, String parent, String name, Object value) {
+		boolean present = param.containsKey(name);
+		Object previous = param.put(name, value);
+		if (! present || ! Objects.equals(previous, value)) {
+			touch(parent.isEmpty() ? name : parent + "." + name);
+		}
+	}
+
+	/**
+	 * Откладывает простое значение до flushSimple, чтобы значения одного родителя записывались
+	 * за один его поиск. Если значение заменяет объект, внутрь которого уже отложены значения,
+	 * отложенные сначала записываются - порядок изменений сохраняется.
+	 */
+	private void queueSimple(String parent, String name, Object value) {
+		if (pending == null) {
+			updateSimple(parent, name, value);
+			return;
+		}
+		String path = parent.isEmpty() ? name : parent + "." + name;
+		for (String key : pending.keySet()) {
+			if (key.equals(path) || key.startsWith(path + ".") || key.startsWith(path + "[")) {
+				flushSimple();
+				break;
+			}
+		}
+		pending.computeIfAbsent(parent, key -> new LinkedHashMap<>()).put(name, value);
+	}
+
+	/**
+	 * Записывает отложенные простые значения: родитель ищется (и при необходимости создается) один раз
+	 * на все его значения, родители - в порядке первого изменения.
+	 */
+	private void flushSimple() {
+		if (pending == null || pending.isEmpty()) {
+			return;
+		}
+		Map<String,Map<String,Object>> groups = pending;
+		pending = new LinkedHashMap<>();
+		for (Entry<String,Map<String,Object>> group : groups.entrySet()) {
+			String parent = group.getKey();
+			JSONObject param = getParam(parent);
+			if (param == null) continue;
+			for (Entry<String,Object> value : group.getValue().entrySet()) {
+				put(param, parent, value.getKey(), value.getValue());
+			}
+		}
+	}
+
+	private void touch(String path) {
+		if (report != null) {
+			report.touch(path);
+		}
+	}
+
+	/**
+	 * Выполняет изменение массивов в родителе key и отмечает key, если родитель после этого отличается.
+	 * Операции над массивами добавляют, удаляют и переставляют элементы, не меняя их, поэтому до изменения
+	 * запоминаются только списки элементов массивов родителя (и вложенных в них массивов), а не их содержимое.
+	 */
+	private void track(String key, Runnable change) {
+		//операции над массивами читают и меняют родителя - отложенные простые значения записываем до них
+		flushSimple();
+		String parent = getParent(key);
+		JSONObject before = get(parent);
+		Map<String,List<Object>> arrays = arrays(before);
+		change.run();
+		JSONObject after = get(parent);
+		if (after != before || (after != null && ! sameArrays(arrays, after))) {
+			touch(key);
+		}
+	}
+
+	private static Map<String,List<Object>> arrays(JSONObject parent) {
+		if (parent == null) {
+			return null;
+		}
+		Map<String,List<Object>> result = new HashMap<>();
+		for (Entry<String,Object> entry : parent.entrySet()) {
+			if (entry.getValue() instanceof List) {
+				List<?> array = (List<?>) entry.getValue();
+				List<Object> items = new ArrayList<>(array.size());
+				for (Object item : array) {
+					items.add(item instanceof List ? new ArrayList<>((List<?>) item) : item);
+				}
+				result.put(entry.getKey(), items);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Массивы after совпадают со снимком: те же элементы (сравнение по ссылке, иначе equals) в том же порядке.
+	 */
+	private static boolean sameArrays(Map<String,List<Object>> before, JSONObject after) {
+		int count = 0;
+		for (Entry<String,Object> entry : after.entrySet()) {
+			if (entry.getValue() instanceof List) {
+				count++;
+				if (! Objects.equals(before.get(entry.getKey()), entry.getValue())) {
+					return false;
+				}
+			}
+		}
+		return count == before.size();
 	}
 
 	protected boolean isIncomplete(String key, JSONObject param) {
@@ -110,6 +249,10 @@ public abstract class ComponentParameters {
 	}
 
 	private void updateSimple(String key, Object value) {
+		if ((key.endsWith("PricePerUnit") || key.endsWith("].Unit")) && program.equals("PriceTypeExtension")) {
+			//useQuantity должен видеть UseQuantity из этого же изменения
+			flushSimple();
+		}
 		if (key.endsWith("PricePerUnit") && program.equals("PriceTypeExtension")) {
 			if (useQuantity()) {
 				key = key.replaceAll("PricePerUnit", "Price.PricePerUnit.Price");
@@ -122,26 +265,27 @@ public abstract class ComponentParameters {
 				key = key.replaceAll("Unit$", "Price.PricePerUnit.Unit");
 			}
 		}
-		updateSimple(getParent(key), getName(key), value);
+		queueSimple(getParent(key), getName(key), value);
 	}
 
 	private void update(String key, Object value) {
 		if (key.endsWith("Counters.Counters") || key.endsWith(".Counters")) {
-			addCounter(key, (JSONObject) value);
+			track(key, () -> addCounter(key, (JSONObject) value));
 		} else if (key.endsWith("SpecialPrice.Price") || key.endsWith(".SpecialPrice")) {
-			addSpecialPrice(key, (JSONObject) value);
+			track(key, () -> addSpecialPrice(key, (JSONObject) value));
 		} else if (key.endsWith("Discounts.Discounts") || key.endsWith("Discounts.NormalDiscount.Discounts") || key.endsWith(".Discounts")) {
-			addDiscount(key, (JSONObject) value);
+			track(key, () -> addDiscount(key, (JSONObject) value));
 		} else if (key.endsWith("DynamicPrice.Thresholds") || key.endsWith("DynamicPrice.Price.Thresholds")) {
-			addDynamicThreshold(key, (JSONObject) value);
+			track(key, () -> addDynamicThreshold(key, (JSONObject) value));
 		} else if (key.endsWith("StepPrice.Thresholds") || key.endsWith("StepPrice.Price.Thresholds")) {
-			addStepThreshold(key, (JSONObject) value);
+			track(key, () -> addStepThreshold(key, (JSONObject) value));
 		} else if (key.endsWith("StepPrice.ActivationService") || key.endsWith("StepPrice.Price.ActivationService")) {
 			updateSimple(key, value);
 			updateSimple("['Basic:Non Call Services'].Param39", value);
 			updateSimple("['FF:Non Call Services'].Param39", value);
 		} else if (key.endsWith(DELETE_FLAG)) {
-			delete(key.replace(DELETE_FLAG, ""), (String)value);
+			String target = key.replace(DELETE_FLAG, "");
+			track(target, () -> delete(target, (String)value));
 		} else {
 			updateSimple(key, value);
 		}
@@ -157,16 +301,42 @@ public abstract class ComponentParameters {
 		}
 	}
 
-	public void update(JSONObject change) {
-		for (Entry<String,Object> entry : change.entrySet()) {
-			update(entry.getKey(), entry.getValue());
+	/**
+	 * Применяет изменения и возвращает отчет о том, что реально поменялось: если отчет пустой,
+	 * параметры совпадают с исходными и сохранять их не нужно.
+	 */
+	public UpdateReport update(JSONObject change) {
+		return update(Collections.singletonList(change));
+	}
+
+	/**
+	 * Применяет несколько наборов изменений по порядку за один проход: простые значения группируются
+	 * по родителю (родитель ищется один раз на группу), значения по умолчанию проверяются один раз в конце,
+	 * отчет общий на все наборы.
+	 */
+	public UpdateReport update(List<JSONObject> changes) {
+		report = new UpdateReport();
+		pending = new LinkedHashMap<>();
+		try {
+			for (JSONObject change : changes) {
+				for (Entry<String,Object> entry : change.entrySet()) {
+					update(entry.getKey(), entry.getValue());
+				}
+			}
+			flushSimple();
+			if (!isDefaultValueToClobExist(object, "Basic:Non Call Services")) {
+				addDefaultValue("Basic:Non Call Services");
+				touch("['Basic:Non Call Services']");
+			}
+			if (!isDefaultValueToClobExist(object, "FF:Non Call Services")) {
+				addDefaultValue("FF:Non Call Services");
+				touch("['FF:Non Call Services']");
+			}
+			return report;
+		} finally {
+			report = null;
+			pending = null;
 		}
-		if (!isDefaultValueToClobExist(object, "Basic:Non Call Services")) {
-			addDefaultValue("Basic:Non Call Services");
-            }
-		if (!isDefaultValueToClobExist(object, "FF:Non Call Services")) {
-			addDefaultValue("FF:Non Call Services");
-            }
 	}
 
 	protected boolean isDefaultValueToClobExist(JSONObject object, String type){
@@ -219,86 +389,92 @@ public abstract class ComponentParameters {
 	protected abstract JSONObject decodeCounter(JSONObject counter);
 
 	private void deleteCounter(String key, String counterCode) {
-		JSONObject element = get(getParent(key));
+		deleteCounter(get(getParent(key)), counterCode);
+	}
+
+	private void deleteCounter(JSONObject element, String counterCode) {
 		((JSONArray) element.get("Counters")).removeIf(counter -> { return ((JSONObject) counter).get("CounterCode").equals(counterCode); });
 		((JSONArray) element.get("SpecialDays")).removeIf(counter -> { return ((JSONObject) counter).get("CounterCode").equals(counterCode); });
 	}
 
+	/**
+	 * Вставляет счетчик на место, не пересобирая массив: неденежные и денежные счетчики идут двумя группами
+	 * (порядок групп задает приоритет), новый встает в свою группу по position/beforeCounter.
+	 */
 	protected void addCounter(JSONArray counters, JSONArray priorities, Integer position, String beforeCounter, JSONObject value, Boolean specialDaysAdd) {
-		//Разделяем полученный массив счетчиков на денежные и неденежные. Вычисляем денежный ли полученный новый счетчик
-		JSONArray moneyCounters = new JSONArray();
-		JSONArray nonMoneyCounters = new JSONArray();
-		counters.forEach(c -> {
-			JSONObject counter =(JSONObject) c;
-			if (counter.containsKey("CounterMoney") && counter.get("CounterMoney").equals(Boolean.TRUE)) moneyCounters.add(counter);
-			else nonMoneyCounters.add(counter);
-		});
-		Boolean isMoneyNewCounter = value.containsKey("CounterMoney") && value.get("CounterMoney").equals(Boolean.TRUE);
-
-		//Добавляем счетчики в масивы денежных и неденежных счетчиков в зависимости от необходимой позиции
-		switch (position){
+		boolean moneyFirst = false;
+		if (priorities != null && priorities.size() > 0) {
+			int priority = (Integer) priorities.get(0);
+			if (priority != 0 && priority != 1) {
+				//для других приоритетов массив не меняется
+				return;
+			}
+			moneyFirst = priority == 1;
+		}
+		int size = counters.size();
+		int boundary = 0;
+		while (boundary < size && isMoneyCounter(counters.get(boundary)) == moneyFirst) {
+			boundary++;
+		}
+		for (int i = boundary; i < size; i++) {
+			if (isMoneyCounter(counters.get(i)) == moneyFirst) {
+				//группы перемешаны - раскладываем по группам с сохранением порядка
+				boundary = groupCounters(counters, moneyFirst);
+				break;
+			}
+		}
+		boolean first = isMoneyCounter(value) == moneyFirst;
+		int start = first ? 0 : boundary;
+		int end = first ? boundary : size;
+		int index;
+		switch (position) {
 			case -1:
-				if(isMoneyNewCounter) moneyCounters.add(value);
-				else nonMoneyCounters.add(value);
+				index = end;
 				break;
 			case 0:
-				if(isMoneyNewCounter) moneyCounters.add(0, value);
-				else nonMoneyCounters.add(0, value);
+				index = start;
 				break;
 			case 1:
-				// Если существует валидный beforeCounter, то вставляем новый счетчик до найденного значения, а если найденного значения нет или типы счетчиков не совпадают,
-				// то последним в свой тип счетчиков
-				int beforeAddCounter = moneyCounters.size()+nonMoneyCounters.size();
-				int afterAddCounter = beforeAddCounter;
-				if(beforeCounter.length() > 0){
-					if(isMoneyNewCounter){
-						for(int i=0; i < moneyCounters.size(); i++){
-							JSONObject counter = (JSONObject)moneyCounters.get(i);
-							if(counter.get("CounterCode").equals(beforeCounter)) {
-								moneyCounters.add(i, value);
-								afterAddCounter++;
-								break;
-							}
-						}
-					}
-					else if(!isMoneyNewCounter){
-						for(int i=0; i < nonMoneyCounters.size(); i++){
-							JSONObject counter = (JSONObject)nonMoneyCounters.get(i);
-							if(counter.get("CounterCode").equals(beforeCounter)) {
-								nonMoneyCounters.add(i, value);
-								afterAddCounter++;
-								break;
-							}
+				// Если существует валидный beforeCounter, то вставляем новый счетчик до найденного значения, иначе последним в свою группу
+				index = end;
+				if (beforeCounter.length() > 0) {
+					for (int i = start; i < end; i++) {
+						if (((JSONObject) counters.get(i)).get("CounterCode").equals(beforeCounter)) {
+							index = i;
+							break;
 						}
 					}
 				}
-				if (beforeAddCounter == afterAddCounter){
-					if(isMoneyNewCounter) moneyCounters.add(value);
-					else nonMoneyCounters.add(value);
-				}
+				break;
+			default:
+				return;
 		}
+		counters.add(index, value);
+	}
 
-		//Если есть приоритеты, то добавляем счетчики в зависимости от приоритетов, если же нет, то сначала будут идти неденежные, а потом денежные
-		if (priorities != null && priorities.size() > 0) {
-			int priority = (Integer) priorities.get(0);
-			switch(priority){
-				case 0:
-					counters.clear();
-					nonMoneyCounters.forEach(mc -> counters.add(mc));
-					moneyCounters.forEach(mc -> counters.add(mc));
-					break;
-				case 1:
-					counters.clear();
-					moneyCounters.forEach(mc -> counters.add(mc));
-					nonMoneyCounters.forEach(mc -> counters.add(mc));
-					break;
+	private static boolean isMoneyCounter(Object counter) {
+		return Boolean.TRUE.equals(((JSONObject) counter).get("CounterMoney"));
+	}
+
+	/**
+	 * Переставляет счетчики группами (первая - денежные, если moneyFirst), сохраняя порядок внутри групп.
+	 * Возвращает размер первой группы.
+	 */
+	private static int groupCounters(JSONArray counters, boolean moneyFirst) {
+		JSONArray second = new JSONArray();
+		int boundary = 0;
+		for (int i = 0; i < counters.size(); i++) {
+			Object counter = counters.get(i);
+			if (isMoneyCounter(counter) == moneyFirst) {
+				counters.set(boundary++, counter);
+			} else {
+				second.add(counter);
 			}
 		}
-		else {
-			counters.clear();
-			nonMoneyCounters.forEach(mc -> counters.add(mc));
-			moneyCounters.forEach(mc -> counters.add(mc));
+		for (int i = 0; i < second.size(); i++) {
+			counters.set(boundary + i, second.get(i));
 		}
+		return boundary;
 	}
 
 	protected void addCounter(String key, Integer position, String beforeCounter, JSONObject value, Boolean specialDaysAdd) {
@@ -306,7 +482,7 @@ public abstract class ComponentParameters {
 		if (element == null) return;
 		if (value == null) return;
 		String counterCode = (String) value.get("CounterCode");
-		deleteCounter(key, counterCode);
+		deleteCounter(element, counterCode);
 		addCounter((JSONArray) element.get("Counters"), (JSONArray) element.get("Priorities"), position, beforeCounter, value, specialDaysAdd);
 		if (specialDaysAdd) {
 			addSpecialDays(element, "CounterCode", counterCode);
@@ -325,7 +501,7 @@ public abstract class ComponentParameters {
 		JSONArray priceList = (JSONArray) specialPrice.get("Price");
 		if (priceList == null) return;
 		String serviceCode = (String) price.get("ServiceCode");
-		deleteSpecialPrice(key, serviceCode);
+		deleteSpecialPrice(specialPrice, serviceCode);
 		priceList.add(price);
 		if (specialDays) {
 			addSpecialDays(specialPrice, "ServiceCode", serviceCode);
@@ -333,7 +509,10 @@ public abstract class ComponentParameters {
 	}
 
 	private void deleteSpecialPrice(String key, String serviceCode) {
-		JSONObject specialPrice = get(getParent(key));
+		deleteSpecialPrice(get(getParent(key)), serviceCode);
+	}
+
+	private void deleteSpecialPrice(JSONObject specialPrice, String serviceCode) {
 		((JSONArray) specialPrice.get("Price")).removeIf(price -> { return ((JSONObject) price).get("ServiceCode").equals(serviceCode); });
 		((JSONArray) specialPrice.get("SpecialDays")).removeIf(price -> { return ((JSONObject) price).get("ServiceCode").equals(serviceCode); });
 	}
@@ -366,35 +545,64 @@ public abstract class ComponentParameters {
 		if (element == null) return;
 		if (value == null) return;
 		String serviceCode = (String) value.get("ServiceCode");
-		checkDiscount(key, serviceCode);
-		deleteDiscount(key, serviceCode);
-		JSONArray discounts = (JSONArray) get(getParent(key)).get("Discounts");
-		discounts.add(value);
+		element = checkDiscount(getParent(key), element);
+		deleteDiscount(element, serviceCode);
+		((JSONArray) element.get("Discounts")).add(value);
 		if (specialDaysAdd) {
 			addSpecialDays(element, "ServiceCode", serviceCode);
 		}
 	}
 
-	private void checkDiscount(String key, String discountCode) {
-		String parentKey = getParent(key);
-		JSONObject element = get(parentKey);
+	/**
+	 * Создает Discounts по умолчанию, если его нет. Возвращает элемент parentKey
+	 * (заново ищет его только если Discounts был создан).
+	 */
+	private JSONObject checkDiscount(String parentKey, JSONObject element) {
 		if (element.get("Discounts") == null) {
 			DefaultObject defaultObjectService = new DefaultObjectService();
 			JSONObject discount = defaultObjectService.createDefaultObject("FFWithPriorityRulesAdvanced", parentKey);
 			JSONObject parent = get(getParent(parentKey));
 			parent.put("Discounts", discount);
+			return get(parentKey);
 		}
+		return element;
 	}
 
 	private void deleteDiscount(String key, String discountCode) {
-		JSONObject element = get(getParent(key));
+		deleteDiscount(get(getParent(key)), discountCode);
+	}
+
+	private void deleteDiscount(JSONObject element, String discountCode) {
 		((JSONArray) element.get("Discounts")).removeIf(discount -> { return ((JSONObject) discount).get("ServiceCode").equals(discountCode); });
 		((JSONArray) element.get("SpecialDays")).removeIf(discount -> { return ((JSONObject) discount).get("ServiceCode").equals(discountCode); });
 	}
 
 	protected abstract JSONObject decodeDiscount(JSONObject discount);
 
+	/**
+	 * Секунды от начала суток для "чч:мм:сс". Обычная запись разбирается без split и временных строк,
+	 * остальные - как раньше.
+	 */
 	private Integer timeToInt(String value) {
+		int result = 0;
+		int pos = 0;
+		for (int part = 0; part < 3; part++) {
+			int start = pos;
+			int number = 0;
+			while (pos < value.length() && pos - start < 9 && value.charAt(pos) >= '0' && value.charAt(pos) <= '9') {
+				number = number * 10 + (value.charAt(pos++) - '0');
+			}
+			boolean separator = part < 2 ? pos < value.length() && value.charAt(pos) == ':' : pos == value.length();
+			if (pos == start || ! separator) {
+				return splitTimeToInt(value);
+			}
+			result += number * (part == 0 ? 3600 : part == 1 ? 60 : 1);
+			pos++;
+		}
+		return result;
+	}
+
+	private Integer splitTimeToInt(String value) {
 		String time[] = value.split(":");
 		try {
 			return Integer.valueOf(time[0]) * 3600 + Integer.valueOf(time[1]) * 60 + Integer.valueOf(time[2]);
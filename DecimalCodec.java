@@ -0,0 +1,136 @@
+package com.mts.rating.component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.DecimalFormat;
+
+/**
+ * Разбор и вывод decimal-значений CLOB без DecimalFormat и промежуточных строк.
+ * Вывод совпадает с прежним форматом "0.000000000000" (HALF_EVEN, без хвостовых нулей).
+ */
+final class DecimalCodec {
+
+	private static final int SCALE = 12;
+	private static final double FACTOR = 1e12;
+	private static final long UNIT = 1000000000000L;
+	//до этого значения целая часть double точна и совпадает с цифрами Double.toString
+	private static final double LIMIT = 1e15;
+	private static final int MAX_DIGITS = 15;
+	private static final double[] POWERS = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	private DecimalCodec() {
+	}
+
+	static String format(double value) {
+		StringBuilder result = new StringBuilder(24);
+		try {
+			format(value, result);
+		} catch (IOException e) {
+			//StringBuilder не бросает IOException
+			throw new UncheckedIOException(e);
+		}
+		return result.toString();
+	}
+
+	static void format(double value, Appendable out) throws IOException {
+		double abs = Math.abs(value);
+		if (! (abs < LIMIT)) {
+			//NaN, бесконечность и большие числа - как раньше
+			out.append(legacy(value));
+			return;
+		}
+		long integer = (long) abs;
+		double fraction = (abs - integer) * FACTOR;
+		long digits = (long) fraction;
+		double rest = fraction - digits;
+		if (abs != integer && Math.abs(rest - 0.5) <= Math.ulp(abs) * FACTOR / 2 + 1e-4) {
+			//DecimalFormat округляет цифры Double.toString, а не точное значение double:
+			//рядом с серединой между соседними 12-значными дробями они могут разойтись
+			out.append(legacy(value));
+			return;
+		}
+		if (rest > 0.5 && ++digits == UNIT) {
+			integer++;
+			digits = 0;
+		}
+		//DecimalFormat сохраняет знак и у значений, округлившихся до нуля (в т.ч. -0.0)
+		if (value < 0 || 1 / value < 0) {
+			out.append('-');
+		}
+		appendDigits(integer, 1, out);
+		if (digits != 0) {
+			int width = SCALE;
+			while (digits % 10 == 0) {
+				digits /= 10;
+				width--;
+			}
+			out.append('.');
+			appendDigits(digits, width, out);
+		}
+	}
+
+	private static void appendDigits(long value, int width, Appendable out) throws IOException {
+		long divisor = 1;
+		for (int i = 1; i < width || divisor <= value / 10; i++) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			out.append((char) ('0' + value / divisor % 10));
+		}
+	}
+
+	private static String legacy(double value) {
+		DecimalFormat formatter = new DecimalFormat("0.000000000000");
+		String string = formatter.format(value).replace(',', '.');
+		int end = string.length();
+		while (end > 0 && string.charAt(end - 1) == '0') {
+			end--;
+		}
+		if (end > 0 && string.charAt(end - 1) == '.') {
+			end--;
+		}
+		return string.substring(0, end);
+	}
+
+	/**
+	 * То же, что Double.valueOf(source.substring(start, end)), но без substring для простых записей
+	 * вида [+-]цифры[.цифры] длиной до 15 цифр: такое число и степень 10 точны в double,
+	 * поэтому одно деление округляется так же, как Double.valueOf.
+	 */
+	static Double parse(String source, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (source.charAt(i) == '-' || source.charAt(i) == '+')) {
+			negative = source.charAt(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = source.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (++digits > MAX_DIGITS) {
+					return Double.valueOf(source.substring(start, end));
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (point) {
+					scale++;
+				}
+			} else if (c == '.' && ! point) {
+				point = true;
+			} else {
+				return Double.valueOf(source.substring(start, end));
+			}
+		}
+		if (digits == 0) {
+			return Double.valueOf(source.substring(start, end));
+		}
+		double value = mantissa / POWERS[scale];
+		return negative ? -value : value;
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.mts.rating.component;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Проверка DecimalCodec на совпадение с прежней реализацией: вывод - с DecimalFormat("0.000000000000")
+ * без хвостовых нулей, разбор - с Double.valueOf (в том числе для decimal-million и процентов).
+ * Запуск: java com.mts.rating.component.DecimalCodecCheck [количество] [seed]; код возврата 1 при расхождении.
+ */
+final class DecimalCodecCheck {
+
+	private static final int MAX_REPORTED = 20;
+
+	private final Random random;
+	private int checked;
+	private int failed;
+
+	private DecimalCodecCheck(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		DecimalCodecCheck check = new DecimalCodecCheck(seed);
+		check.fixed();
+		for (int i = 0; i < count; i++) {
+			check.format(check.nextDouble());
+			check.parse(check.nextString());
+		}
+		System.out.println("seed " + seed + ": checked " + check.checked + ", failed " + check.failed);
+		if (check.failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private void fixed() {
+		double values[] = {
+				0.0, -0.0, 1, -1, 0.5, 1e-12, 5e-13, -5e-13, 4.9e-13, 1.5e-12, 2.5e-12, 0.1, 0.2, 0.3,
+				1.0625, 2.555, 0.2725, 0.252, 1.2345, 999999999999.9999, 1e14, 1e15 - 1, 1e15, 1e16, 1e20,
+				Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+		};
+		for (double value : values) {
+			format(value);
+			format(-value);
+		}
+		String strings[] = {
+				"0", "-0", "+0", "0.0", ".5", "5.", "-.5", "1.0625", "0.000000000001", "123456789012345",
+				"1234567890123456", "0.1234567890123456", "1e3", "1E-3", "NaN", "Infinity", "-Infinity", "0x10"
+		};
+		for (String string : strings) {
+			parse(string);
+		}
+	}
+
+	/**
+	 * Значения разных порядков: произвольные, с небольшим числом знаков (как цены) и на середине
+	 * между соседними 12-значными дробями, где DecimalFormat округляет к четному.
+	 */
+	private double nextDouble() {
+		double value;
+		switch (random.nextInt(4)) {
+		case 0:
+			value = random.nextDouble() * Math.pow(10, random.nextInt(32) - 16);
+			break;
+		case 1:
+			value = Math.round(random.nextDouble() * 1e6) / Math.pow(10, random.nextInt(7));
+			break;
+		case 2:
+			value = (random.nextInt(1000000) * 2 + 1) / 2e12 + random.nextInt(1000);
+			break;
+		default:
+			value = Double.longBitsToDouble(random.nextLong());
+			break;
+		}
+		return random.nextBoolean() ? value : -value;
+	}
+
+	private String nextString() {
+		StringBuilder string = new StringBuilder();
+		switch (random.nextInt(3)) {
+		case 0:
+			string.append('-');
+			break;
+		case 1:
+			string.append('+');
+			break;
+		default:
+			break;
+		}
+		int digits = 1 + random.nextInt(18);
+		int point = random.nextInt(digits + 1);
+		for (int i = 0; i < digits; i++) {
+			if (i == point && i > 0) {
+				string.append('.');
+			}
+			string.append((char) ('0' + random.nextInt(10)));
+		}
+		return string.toString();
+	}
+
+	private void format(double value) {
+		StringBuilder out = new StringBuilder();
+		String actual;
+		try {
+			DecimalCodec.format(value, out);
+			actual = out.toString();
+		} catch (Exception e) {
+			actual = e.toString();
+		}
+		compare("format " + Double.toString(value), legacy(value), actual);
+		compare("format(String) " + Double.toString(value), legacy(value), DecimalCodec.format(value));
+	}
+
+	private void parse(String string) {
+		String expected;
+		try {
+			expected = Double.valueOf(string).toString();
+		} catch (NumberFormatException e) {
+			expected = "NumberFormatException";
+		}
+		compare("decimal " + string, expected, parsed(string, 0, string.length(), 1));
+		//в окружении CLOB, как его разбирает шаблон
+		String source = "@" + string + "%@";
+		compare("percent " + string, expected, parsed(source, 1, source.length() - 2, 1));
+		String million;
+		try {
+			million = Double.valueOf(Double.valueOf(string).doubleValue() / 1000000).toString();
+		} catch (NumberFormatException e) {
+			million = "NumberFormatException";
+		}
+		compare("decimal-million " + string, million, parsed(string, 0, string.length(), 1000000));
+	}
+
+	private static String parsed(String source, int start, int end, double divisor) {
+		try {
+			return Double.valueOf(DecimalCodec.parse(source, start, end).doubleValue() / divisor).toString();
+		} catch (NumberFormatException e) {
+			return "NumberFormatException";
+		}
+	}
+
+	private void compare(String what, String expected, String actual) {
+		checked++;
+		if (! expected.equals(actual)) {
+			if (failed++ < MAX_REPORTED) {
+				System.out.println(what + ": expected " + expected + ", actual " + actual);
+			}
+		}
+	}
+
+	/**
+	 * Прежний RatingComponent.doubleToString.
+	 */
+	private static String legacy(double value) {
+		DecimalFormat formatter = new DecimalFormat("0.000000000000");
+		String string = formatter.format(value).replace(',', '.');
+		while (string.endsWith("0")) {
+			string = string.substring(0, string.length() - 1);
+		}
+		if (string.endsWith(".")) {
+			string = string.substring(0, string.length() - 1);
+		}
+		return string;
+	}
+
+}
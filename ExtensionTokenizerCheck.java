@@ -0,0 +1,176 @@
+package com.mts.rating.component;
+
+import com.mts.rating.component.TemplateNode.ExtensionNode;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import java.util.Random;
+
+/**
+ * Проверка разбиения CLOB расширений (ExtensionNode.parse) на совпадение с прежним разбором
+ * RatingComponent.parseExtension: посимвольный проход по копии строки с добавленным delimiter,
+ * split("=", 2) и split(":"). Секции в обоих случаях разбирает один и тот же узел шаблона,
+ * сравниваются результат или класс исключения.
+ * Запуск: java com.mts.rating.component.ExtensionTokenizerCheck [количество] [seed]; код возврата 1 при расхождении.
+ */
+final class ExtensionTokenizerCheck {
+
+	private static final int MAX_REPORTED = 20;
+	private static final String DELIMITER = "|";
+	private static final String WRAPPER = "{}";
+	//служебные символы формата и немного обычных
+	private static final String ALPHABET = "|{}=:;†AB x1";
+
+	private final Random random;
+	private final ExtensionNode node;
+	private int checked;
+	private int failed;
+
+	private ExtensionTokenizerCheck(long seed) {
+		this.random = new Random(seed);
+		this.node = (ExtensionNode) new TemplateCompiler("ExtensionCheck", template()).compile();
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		ExtensionTokenizerCheck check = new ExtensionTokenizerCheck(seed);
+		String corpus[] = {
+				"e:A={x;1}", "e:A={x;1}|f:B=x", "e:A={x|y;1}|f:B=x", "e:A={x†y}†f:B=1", "e:A:1={}",
+				"e:B=", "e:B=a=b", "e:B=a:b", "e:A={{x}|y}", "e:A={x", "e:B=x|", "|e:B=x", "e:B", "e=x", "=x", ""
+		};
+		for (String string : corpus) {
+			check.compare(string);
+		}
+		for (int i = 0; i < count; i++) {
+			check.compare(random(check.random));
+			check.compare(check.generated());
+		}
+		System.out.println("seed " + seed + ": checked " + check.checked + ", failed " + check.failed);
+		if (check.failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Расширение с секциями A (в обертке, два поля через ';') и B (одно поле).
+	 */
+	private static JSONObject template() {
+		JSONObject a = section("A", ";");
+		a.put("wrapped", Boolean.TRUE);
+		((JSONArray) a.get("objects")).add(field("T"));
+		JSONObject include = new JSONObject();
+		include.put("A", a);
+		include.put("B", section("B", ";"));
+		JSONObject template = new JSONObject();
+		template.put("type", "extension");
+		template.put("delimiter", DELIMITER);
+		template.put("wrapper", WRAPPER);
+		template.put("include", include);
+		return template;
+	}
+
+	private static JSONObject section(String name, String delimiter) {
+		JSONArray objects = new JSONArray();
+		objects.add(field("S"));
+		JSONObject section = new JSONObject();
+		section.put("name", name);
+		section.put("delimiter", delimiter);
+		section.put("objects", objects);
+		return section;
+	}
+
+	private static JSONObject field(String name) {
+		JSONObject field = new JSONObject();
+		field.put("name", name);
+		field.put("type", "string");
+		return field;
+	}
+
+	private static String random(Random random) {
+		StringBuilder string = new StringBuilder();
+		for (int i = random.nextInt(24); i > 0; i--) {
+			string.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return string.toString();
+	}
+
+	/**
+	 * Правдоподобный CLOB: несколько секций, иногда с лишними символами внутри.
+	 */
+	private String generated() {
+		StringBuilder string = new StringBuilder();
+		for (int i = 1 + random.nextInt(4); i > 0; i--) {
+			if (string.length() > 0) {
+				string.append(random.nextInt(8) == 0 ? "†" : DELIMITER);
+			}
+			boolean wrapped = random.nextBoolean();
+			string.append("e").append(random.nextInt(3)).append(wrapped ? ":A" : ":B");
+			if (random.nextInt(4) == 0) {
+				string.append(':').append(random.nextInt(3));
+			}
+			string.append('=');
+			if (wrapped) {
+				string.append('{').append(random(random)).append(';').append(random(random)).append('}');
+			} else {
+				string.append(random(random).replace("{", ""));
+			}
+		}
+		return string.toString();
+	}
+
+	private void compare(String string) {
+		String expected;
+		String actual;
+		try {
+			expected = legacy(string).toString();
+		} catch (RuntimeException e) {
+			expected = e.getClass().getName();
+		}
+		try {
+			//в окружении, чтобы учитывались границы [start, end)
+			String source = "<" + string + ">";
+			actual = node.parse(source, 1, source.length() - 1, new CodecContext()).toString();
+		} catch (RuntimeException e) {
+			actual = e.getClass().getName();
+		}
+		checked++;
+		if (! expected.equals(actual)) {
+			if (failed++ < MAX_REPORTED) {
+				System.out.println("\"" + string + "\": expected " + expected + ", actual " + actual);
+			}
+		}
+	}
+
+	/**
+	 * Прежний RatingComponent.parseExtension.
+	 */
+	private JSONObject legacy(String string) {
+		CodecContext context = new CodecContext();
+		JSONObject result = new JSONObject();
+		StringBuilder sb = new StringBuilder();
+		String wrapperIn = WRAPPER.substring(0,1);
+		String wrapperOut = WRAPPER.substring(1,2);
+		boolean inside = false;
+		string = string.concat(DELIMITER);
+		for (int i = 0; i < string.length(); i++) {
+			String chr = string.substring(i,i+1);
+			if (! inside && (DELIMITER.equals(chr) | chr.equals("†"))) {
+				String extension = sb.toString();
+				String parts[] = extension.split("=", 2);
+				String types[] = parts[0].split(":");
+				result.put(parts[0], node.sections.get(types[1]).parse(parts[1], 0, parts[1].length(), context));
+				sb.setLength(0);
+			} else {
+				sb.append(chr);
+				if (! inside && wrapperIn.equals(chr)) {
+					inside = true;
+				} else if (inside && wrapperOut.equals(chr)) {
+					inside = false;
+				}
+			}
+		}
+		return result;
+	}
+
+}
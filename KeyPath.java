@@ -0,0 +1,119 @@
+package com.mts.rating.component;
+
+import com.jayway.jsonpath.JsonPath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Разобранный ключ параметров вида a.b['c:d'].e[0]. Ключи кешируются, чтение идет по Map/List
+ * напрямую; результат тот же, что у JsonPath.read(object, "$." + key), только вместо
+ * PathNotFoundException возвращается null. Ключи другого синтаксиса (*, .., фильтры)
+ * читаются через скомпилированный один раз JsonPath.
+ */
+final class KeyPath {
+
+	private static final Map<String,KeyPath> CACHE = new ConcurrentHashMap<>();
+
+	//String - имя поля, Integer - индекс массива
+	private final Object tokens[];
+	private final JsonPath compiled;
+
+	private KeyPath(String key) {
+		this.tokens = tokenize(key);
+		this.compiled = tokens == null ? JsonPath.compile("$." + key) : null;
+	}
+
+	static KeyPath of(String key) {
+		return CACHE.computeIfAbsent(key, KeyPath::new);
+	}
+
+	Object read(Object json) {
+		if (compiled != null) {
+			return compiled.read(json);
+		}
+		if (json == null) {
+			//как JsonPath
+			throw new IllegalArgumentException("json can not be null");
+		}
+		Object current = json;
+		for (Object token : tokens) {
+			if (token instanceof String) {
+				if (! (current instanceof Map)) return null;
+				current = ((Map) current).get(token);
+			} else {
+				if (! (current instanceof List)) return null;
+				List list = (List) current;
+				int index = (Integer) token;
+				if (index < 0) index += list.size();
+				if (index < 0 || index >= list.size()) return null;
+				current = list.get(index);
+			}
+			if (current == null) return null;
+		}
+		return current;
+	}
+
+	/**
+	 * Токены ключа или null, если ключ не укладывается в простой синтаксис.
+	 */
+	private static Object[] tokenize(String key) {
+		List<Object> tokens = new ArrayList<>();
+		int length = key.length();
+		int pos = 0;
+		while (pos < length) {
+			char chr = key.charAt(pos);
+			if (chr == '[') {
+				int close = key.indexOf(']', pos);
+				if (close < 0) return null;
+				Object token = bracket(key, pos + 1, close);
+				if (token == null) return null;
+				tokens.add(token);
+				pos = close + 1;
+			} else {
+				if (chr == '.') {
+					if (tokens.isEmpty()) return null;
+					pos++;
+				} else if (! tokens.isEmpty()) {
+					return null;
+				}
+				int end = pos;
+				while (end < length && isNameChar(key.charAt(end))) {
+					end++;
+				}
+				if (end == pos) {
+					//'..', '.[' и пустые имена оставляем JsonPath
+					return null;
+				}
+				tokens.add(key.substring(pos, end));
+				pos = end;
+			}
+		}
+		return tokens.isEmpty() ? null : tokens.toArray();
+	}
+
+	private static Object bracket(String key, int start, int end) {
+		if (end - start >= 2) {
+			char quote = key.charAt(start);
+			if ((quote == '\'' || quote == '"') && key.charAt(end - 1) == quote) {
+				String name = key.substring(start + 1, end - 1);
+				if (name.indexOf('\'') >= 0 || name.indexOf('"') >= 0 || name.indexOf('\\') >= 0) return null;
+				return name;
+			}
+		}
+		int pos = start < end && key.charAt(start) == '-' ? start + 1 : start;
+		if (pos == end || end - pos > 9) return null;
+		for (int i = pos; i < end; i++) {
+			char chr = key.charAt(i);
+			if (chr < '0' || chr > '9') return null;
+		}
+		return Integer.valueOf(key.substring(start, end));
+	}
+
+	private static boolean isNameChar(char chr) {
+		return ! Character.isWhitespace(chr) && ".[]()*'\"?@$,".indexOf(chr) < 0;
+	}
+
+}
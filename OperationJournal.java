@@ -0,0 +1,186 @@
+package com.mts.rating.editor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Журнал операции с промежуточными фиксациями: после каждой фиксации в файл дописываются
+ * id зафиксированных объектов и новые записи result. Если операция прервалась, тот же
+ * вызов (тот же тип и параметры) найдет журнал, пропустит выполненные объекты и восстановит result.
+ * <p>
+ * Объекты отмечаются по постоянному id, а не по toString. Записи result с ключом-объектом журнал
+ * хранит по id (Integer, вызывающий передает его сам и по нему же находит объект при восстановлении),
+ * остальные ключи - строкой: после восстановления такие записи result имеют ключи String.
+ * <p>
+ * Формат - строки с полями через табуляцию: O - id операции, D - id объекта,
+ * P - id объекта и значение result, R - строковый ключ и значение result.
+ */
+final class OperationJournal implements Closeable {
+
+	private final Path file;
+	private final String operationId;
+	//isDone читают все потоки операции без блокировки, пока checkpoint дописывает
+	private final Set<Integer> done = ConcurrentHashMap.newKeySet();
+	//ключи - Integer (id объекта) или String
+	private final Map<Object,String> results = new LinkedHashMap<>();
+	private final Writer writer;
+
+	private OperationJournal(Path file, String operationId) throws IOException {
+		this.file = file;
+		this.operationId = operationId;
+		boolean exists = Files.exists(file);
+		if (exists) {
+			read();
+		}
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		if (! exists) {
+			writer.write("O\t" + operationId + "\n");
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Открывает журнал операции в directory; id операции - хеш типа и параметров вызова.
+	 */
+	static OperationJournal open(Path directory, String operationType, Object... parameters) throws IOException {
+		Files.createDirectories(directory);
+		String operationId = operationId(operationType, parameters);
+		return new OperationJournal(directory.resolve(operationType + "-" + operationId + ".journal"), operationId);
+	}
+
+	private static String operationId(String operationType, Object... parameters) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(operationType.getBytes(StandardCharsets.UTF_8));
+			for (Object parameter : parameters) {
+				digest.update((byte) 0);
+				digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+			}
+			StringBuilder id = new StringBuilder();
+			for (byte b : digest.digest()) {
+				id.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return id.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//SHA-1 есть в любой JRE
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void read() throws IOException {
+		String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		int end = content.lastIndexOf('\n') + 1;
+		if (end < content.length()) {
+			//строку, недописанную при сбое, отбрасываем, чтобы к ней не приклеилась следующая запись
+			content = content.substring(0, end);
+			Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		}
+		for (String line : content.split("\n")) {
+			String fields[] = line.split("\t", -1);
+			if (fields[0].equals("D") && fields.length == 2) {
+				done.add(Integer.valueOf(fields[1]));
+			} else if (fields[0].equals("P") && fields.length == 3) {
+				results.put(Integer.valueOf(fields[1]), unescape(fields[2]));
+			} else if (fields[0].equals("R") && fields.length == 3) {
+				results.put(unescape(fields[1]), unescape(fields[2]));
+			}
+		}
+	}
+
+	String getOperationId() {
+		return operationId;
+	}
+
+	boolean isDone(int id) {
+		return done.contains(id);
+	}
+
+	/**
+	 * Записи result, восстановленные из журнала (копия): ключ - Integer (id объекта) или String.
+	 */
+	synchronized Map<Object,String> getResults() {
+		return new LinkedHashMap<>(results);
+	}
+
+	/**
+	 * Отмечает ids выполненными и дописывает записи result, которых еще нет в журнале.
+	 * Ключи result - Integer (id объекта) или любые другие, которые сохраняются строкой.
+	 * Вызывается после фиксации транзакции.
+	 */
+	synchronized void checkpoint(Collection<Integer> ids, Map<?,?> result) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (Integer id : ids) {
+			if (done.add(id)) {
+				lines.append("D\t").append(id).append('\n');
+			}
+		}
+		for (Map.Entry<?,?> entry : result.entrySet()) {
+			Object key = entry.getKey() instanceof Integer ? entry.getKey() : String.valueOf(entry.getKey());
+			String value = String.valueOf(entry.getValue());
+			if (! value.equals(results.get(key))) {
+				results.put(key, value);
+				lines.append(key instanceof Integer ? "P\t" : "R\t").append(escape(key.toString())).append('\t').append(escape(value)).append('\n');
+			}
+		}
+		writer.write(lines.toString());
+		writer.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	/**
+	 * Операция завершена - журнал больше не нужен.
+	 */
+	synchronized void delete() throws IOException {
+		writer.close();
+		Files.deleteIfExists(file);
+	}
+
+	private static String escape(String value) {
+		StringBuilder result = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char chr = value.charAt(i);
+			switch (chr) {
+				case '\\': result.append("\\\\"); break;
+				case '\t': result.append("\\t"); break;
+				case '\n': result.append("\\n"); break;
+				case '\r': result.append("\\r"); break;
+				default: result.append(chr);
+			}
+		}
+		return result.toString();
+	}
+
+	private static String unescape(String value) {
+		StringBuilder result = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char chr = value.charAt(i);
+			if (chr == '\\' && i + 1 < value.length()) {
+				chr = value.charAt(++i);
+				switch (chr) {
+					case 't': chr = '\t'; break;
+					case 'n': chr = '\n'; break;
+					case 'r': chr = '\r'; break;
+				}
+			}
+			result.append(chr);
+		}
+		return result.toString();
+	}
+
+}
@@ -6,44 +6,109 @@ import com.mts.rating.migration.MigrationException;
 import com.mts.rating.migration.MigrationFactory;
 import com.mts.rating.model.*;
 import com.mts.rating.util.ResultCode;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import net.minidev.json.JSONObject;
 import net.minidev.json.JSONValue;
 import oracle.jdbc.OracleTypes;
 import org.xml.sax.SAXException;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
 import javax.persistence.StoredProcedureQuery;
 import javax.xml.parsers.ParserConfigurationException;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class Processor {
 
-	private final EntityManager entityManager = Main.getEntityManager();
+	public final static int DEFAULT_BATCH_SIZE = 100;
+	public final static int DEFAULT_WORKERS = 1;
+	public final static int DEFAULT_PRICE_FETCH_SIZE = 100;
+	//CLOB до этой длины читаем одним getSubString
+	final static int CLOB_SUBSTRING_LENGTH = 32768;
+	final static int CLOB_BUFFER_SIZE = 16384;
+	//параметры rdp.update_price
+	private final static int PRICE_UPDATE_TYPES[] = {Types.INTEGER, Types.TIMESTAMP, Types.VARCHAR, Types.CLOB, Types.CLOB, Types.VARCHAR, Types.INTEGER};
+	private final static ThreadLocal<Map<String,ComponentParameters>> PARAMETERS = ThreadLocal.withInitial(HashMap::new);
+	private final static Map<String,CachedRule> TARIFF_ZONE_RULES = new ConcurrentHashMap<>();
+
+	private final EntityManager entityManager;
 
 	private BiConsumer<Integer,Integer> progressProperty;
 	private Connection jdbcConnection;
 	private Result result = new Result();
 	private CallableStatement priceUpdateStatement;
+	private PriceBatch priceBatch;
+	//id цен, вызовы которых в пакете упали или не были выполнены
+	private final Set<Integer> failedPrices = new HashSet<>();
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int workers = DEFAULT_WORKERS;
+	private int pipelineDepth;
+	private int priceFetchSize = DEFAULT_PRICE_FETCH_SIZE;
+	private long tariffZoneRuleTtl;
+	private int commitInterval;
+	private Path journalDirectory;
+	private OperationJournal journal;
+	private String operationType;
+	private String operationDescription;
+	private String operationUser;
 	private CallableStatement updateTransitionStatement;
-	private CallableStatement getPricesStatement;
 	private CallableStatement isTimeSchemaEmptyStatement;
 	private CallableStatement timeSchemaReplicateStatement;
 	private CallableStatement addChangeRelationStatement;
 	private CallableStatement changePriorityStatement;
-	private List<TariffPlanChangeRelation> tariffPlanChangeRelations;
+	//tariffPlanChangeId отношений, переходы которых уже обновлены
+	private Set<Integer> tariffPlanChangeRelations;
+	//пакет rdp.update_tpcr_params и ТП его вызовов (null - без пакета)
+	private CallBatch transitionBatch;
+	private List<TariffPlan> pendingTransitions;
+	//пакет rdp.add_change_relation и ТП его вызовов (null - без пакета)
+	private CallBatch relationBatch;
+	private List<TariffPlan> pendingRelations;
+
+	public Processor() {
+		this.entityManager = Main.getEntityManager();
+	}
+
+	/**
+	 * Обработчик части массовой операции: свой EntityManager (и соединение), своя транзакция и свой result.
+	 */
+	private Processor(Processor parent) {
+		this.entityManager = parent.entityManager.getEntityManagerFactory().createEntityManager();
+		this.batchSize = parent.batchSize;
+		this.pipelineDepth = parent.pipelineDepth;
+		this.priceFetchSize = parent.priceFetchSize;
+		this.tariffZoneRuleTtl = parent.tariffZoneRuleTtl;
+		this.commitInterval = parent.commitInterval;
+		this.journal = parent.journal;
+		this.operationType = parent.operationType;
+		this.operationDescription = parent.operationDescription;
+		this.operationUser = parent.operationUser;
+	}
 
 	public void setProgressProperty(BiConsumer progressProperty) {
 		this.progressProperty = progressProperty;
@@ -56,10 +121,17 @@ public class Processor {
 	private void start(String operationType, String operationDescription) {
 		System.out.println("[Start: " + operationType + "] " + (operationDescription != null ? operationDescription : ""));
 		Security.audit(operationType, operationDescription);
+		this.operationType = operationType;
+		this.operationDescription = operationDescription;
+		this.operationUser = Security.getCurrentUser();
+		begin();
+	}
+
+	private void begin() {
 		entityManager.getTransaction().begin();
 		StoredProcedureQuery query = entityManager.createNamedStoredProcedureQuery("Process.newOperation");
 		query.setParameter("p_type", operationType);
-		query.setParameter("p_user", Security.getCurrentUser());
+		query.setParameter("p_user", operationUser);
 		query.setParameter("p_description", operationDescription);
 		query.execute();
 	}
@@ -69,6 +141,250 @@ public class Processor {
 		System.out.println("[Finish]");
 	}
 
+	public int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Сколько потоков (и соединений) использовать в массовых операциях; 1 и меньше - все в текущем потоке, как раньше.
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Сколько цен updatePrice разбирает и изменяет заранее в отдельных потоках, пока предыдущие пишутся в БД;
+	 * 0 - все в текущем потоке, как раньше.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Фиксировать изменения через каждые commitInterval объектов; 0 - одной транзакцией на всю операцию, как раньше.
+	 */
+	public void setCommitInterval(int commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	public Path getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	/**
+	 * Каталог журналов операций с промежуточными фиксациями (см. OperationJournal); null - без журнала.
+	 */
+	public void setJournalDirectory(Path journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	/**
+	 * Открывает журнал операции над prices и восстанавливает из него result: записи по цене
+	 * снова получают ключом цену из prices, остальные приходят со строковым ключом.
+	 */
+	private void openJournal(List<NetworkServicePrice> prices, String operationType, Object... parameters) {
+		if (commitInterval <= 0 || journalDirectory == null) {
+			return;
+		}
+		try {
+			journal = OperationJournal.open(journalDirectory, operationType, parameters);
+			Map<Object,String> results = journal.getResults();
+			if (! results.isEmpty()) {
+				System.out.println("[Resume: " + journal.getOperationId() + "]");
+				Map<Integer,NetworkServicePrice> byId = new HashMap<>();
+				prices.forEach(price -> byId.put(price.getPriceId(), price));
+				results.forEach((key, value) -> result.put(key instanceof Integer && byId.containsKey(key) ? byId.get(key) : key, value));
+			}
+		} catch (IOException e) {
+			//без журнала операция выполняется, но продолжить ее после сбоя будет нельзя
+			e.printStackTrace();
+			journal = null;
+		}
+	}
+
+	private void closeJournal(boolean completed) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			if (completed) {
+				journal.delete();
+			} else {
+				journal.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			journal = null;
+		}
+	}
+
+	/**
+	 * Промежуточная фиксация: отправляет пакет, фиксирует транзакцию EntityManager (с записью операции
+	 * из begin) и сразу начинает следующую, которую зафиксирует finish; затем отмечает цены ids в журнале.
+	 */
+	private void checkpoint(List<Integer> ids) throws SQLException, IOException {
+		if (priceBatch != null) {
+			priceBatch.flush();
+		}
+		EntityTransaction transaction = entityManager.getTransaction();
+		transaction.commit();
+		transaction.begin();
+		reconnect();
+		if (journal != null) {
+			journal.checkpoint(ids, journalResults());
+		}
+		ids.clear();
+	}
+
+	/**
+	 * В новой транзакции EntityManager может отдать другое соединение - тогда вызов rdp.update_price
+	 * и пакет готовятся заново на нем.
+	 */
+	private void reconnect() throws SQLException {
+		Connection connection = entityManager.unwrap(Connection.class);
+		if (connection == jdbcConnection) {
+			return;
+		}
+		jdbcConnection = connection;
+		if (priceUpdateStatement != null) {
+			try {
+				priceUpdateStatement.close();
+			} catch (SQLException ignore) {}
+			priceUpdateStatement = jdbcConnection.prepareCall("{ call rdp.update_price(?,?,?,?,?,?,?) }");
+		}
+		if (priceBatch != null) {
+			try {
+				priceBatch.close();
+			} catch (SQLException ignore) {}
+			priceBatch = new PriceBatch();
+		}
+	}
+
+	/**
+	 * result для журнала: записи по цене - с ключом priceId, а не по toString цены.
+	 */
+	private Map<Object,Object> journalResults() {
+		Map<Object,Object> entries = new LinkedHashMap<>();
+		for (Object entry : result.entrySet()) {
+			Map.Entry<?,?> item = (Map.Entry<?,?>) entry;
+			Object key = item.getKey() instanceof NetworkServicePrice ? ((NetworkServicePrice) item.getKey()).getPriceId() : item.getKey();
+			entries.put(key, item.getValue());
+		}
+		return entries;
+	}
+
+	/**
+	 * Часть массовой операции над списком объектов.
+	 */
+	private interface Partition<T> {
+		int execute(Processor processor, List<T> items);
+	}
+
+	/**
+	 * Выполняет partition над items: в текущей транзакции или, если workers больше 1, частями в отдельных потоках.
+	 * Каждая часть идет на своем соединении и фиксируется своей транзакцией, result частей добавляется
+	 * в общий в порядке частей. Возвращает первый ненулевой код.
+	 */
+	private <T> int execute(List<T> items, Partition<T> partition) {
+		int threads = Math.min(workers, items.size());
+		if (threads <= 1) {
+			return partition.execute(this, items);
+		}
+		int total = items.size();
+		int size = (total + threads - 1) / threads;
+		List<List<T>> parts = new ArrayList<>();
+		for (int from = 0; from < total; from += size) {
+			parts.add(items.subList(from, Math.min(from + size, total)));
+		}
+		return execute(parts, total, partition);
+	}
+
+	/**
+	 * Как execute, но объекты с одинаковым key всегда попадают в одну часть: части не видят
+	 * незафиксированных изменений друг друга, поэтому проверки на дубликаты должны идти в одной транзакции.
+	 */
+	private <T> int execute(List<T> items, Function<T,Object> key, Partition<T> partition) {
+		int threads = Math.min(workers, items.size());
+		if (threads <= 1) {
+			return partition.execute(this, items);
+		}
+		List<List<T>> parts = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			parts.add(new ArrayList<>());
+		}
+		for (T item : items) {
+			parts.get(Math.floorMod(Objects.hashCode(key.apply(item)), threads)).add(item);
+		}
+		parts.removeIf(List::isEmpty);
+		return execute(parts, items.size(), partition);
+	}
+
+	private <T> int execute(List<List<T>> parts, int total, Partition<T> partition) {
+		AtomicInteger done = new AtomicInteger();
+		BiConsumer<Integer,Integer> progress = (count, partTotal) -> {
+			if (progressProperty != null) {
+				progressProperty.accept(done.incrementAndGet(), total);
+			}
+		};
+		List<Processor> processors = new ArrayList<>();
+		List<Future<Integer>> futures = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+		try {
+			for (List<T> part : parts) {
+				Processor processor = new Processor(this);
+				processor.progressProperty = progress;
+				processors.add(processor);
+				futures.add(executor.submit(() -> processor.executePartition(part, partition)));
+			}
+			int ret = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				int partRet;
+				try {
+					partRet = futures.get(i).get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					partRet = -100;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					futures.forEach(future -> future.cancel(true));
+					return -100;
+				}
+				result.putAll(processors.get(i).result);
+				if (ret == 0) {
+					ret = partRet;
+				}
+			}
+			return ret;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private <T> int executePartition(List<T> items, Partition<T> partition) {
+		try {
+			begin();
+			return partition.execute(this, items);
+		} finally {
+			//как finish: фиксируем то, что успели, и при ошибке
+			try {
+				if (entityManager.getTransaction().isActive()) {
+					entityManager.getTransaction().commit();
+				}
+			} finally {
+				entityManager.close();
+			}
+		}
+	}
+
 	private boolean isTimeSchemaEmpty(TariffZone tariffZone, NetworkService networkService) {
 		StoredProcedureQuery query = entityManager.createNamedStoredProcedureQuery("TimeSchema.isEmpty");
 		query.setParameter("p_tariff_zone", tariffZone.getZoneId());
@@ -177,23 +493,37 @@ public class Processor {
 		return ret;
 	}
 
-	private int updateTransition(TariffPlanChangeRelation changeRelation, String counterCode, String function, Integer changeRules) throws SQLException {
+	private int updateTransition(TariffPlanChangeRelation changeRelation, String counterCode, String function, Integer changeRules, TariffPlan target) throws SQLException {
 		if (function == null || function.isEmpty()) {
 			function = changeRelation.getTransitionDefault();
 		}
 		try {
+			//TransitionParameters (модуль model) разбирает и собирает XML через DOM и сам создает фабрики:
+			//переиспользовать их отсюда нельзя, кодек без DOM нужно делать в модуле model
 			TransitionParameters transitionParameters = new TransitionParameters(changeRelation.getTransitionParameters());
+			String old = transitionParameters.getOutpar(counterCode);
 			if (changeRules > 0) {
-				String old = transitionParameters.getOutpar(counterCode);
 				if (old != null && ! old.isEmpty()) {
 					if (changeRules == 2) return 0;
 					if (! (old.equals("oa") || old.equals("na"))) return 0;
 				}
 			}
+			if (function != null && function.equals(old)) {
+				//переход уже такой - XML не пересобираем и процедуру не вызываем
+				return 0;
+			}
 			transitionParameters.addOutpar(counterCode, function);
-			updateTransitionStatement.setInt(1, changeRelation.getTariffPlanChangeId());
-			updateTransitionStatement.setString(2, transitionParameters.toXML());
-			updateTransitionStatement.execute();
+			if (transitionBatch != null) {
+				transitionBatch.add(changeRelation.getTariffPlanChangeId(), transitionParameters.toXML());
+				pendingTransitions.add(target);
+				if (pendingTransitions.size() >= batchSize) {
+					flushTransitions();
+				}
+			} else {
+				updateTransitionStatement.setInt(1, changeRelation.getTariffPlanChangeId());
+				updateTransitionStatement.setString(2, transitionParameters.toXML());
+				updateTransitionStatement.execute();
+			}
 		} catch (ParserConfigurationException | SAXException | IOException e) {
 			e.printStackTrace();
 			return -122;
@@ -201,10 +531,42 @@ public class Processor {
 		return 0;
 	}
 
+	/**
+	 * Отправляет накопленные вызовы rdp.update_tpcr_params. Для упавших и неотправленных переходов
+	 * в result пишется ошибка по ТП, у которого найден переход.
+	 */
+	private void flushTransitions() throws SQLException {
+		if (transitionBatch == null || transitionBatch.isEmpty()) return;
+		List<TariffPlan> targets = new ArrayList<>(pendingTransitions);
+		pendingTransitions.clear();
+		try {
+			transitionBatch.execute();
+		} catch (BatchUpdateException e) {
+			putFailed(targets, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Пишет в result ошибку пакета по ключам вызовов, которые упали или не были выполнены.
+	 */
+	private void putFailed(List<?> keys, BatchUpdateException e) {
+		int counts[] = e.getUpdateCounts();
+		for (int i = 0; i < keys.size(); i++) {
+			if (counts == null || i >= counts.length || counts[i] == Statement.EXECUTE_FAILED) {
+				result.put(keys.get(i), e.getMessage());
+			}
+		}
+	}
+
 	private int updateTransition(List<TariffPlan> tariffPlans, Integer direction, String counterCode, LocalDateTime dateStart, String function, Integer changeRules) {
 		try {
 			jdbcConnection = entityManager.unwrap(Connection.class);
 			updateTransitionStatement = jdbcConnection.prepareCall("{ call rdp.update_tpcr_params(?,?) }");
+			if (batchSize > 1) {
+				transitionBatch = new CallBatch(jdbcConnection, "rdp.update_tpcr_params", batchSize, Types.INTEGER, Types.VARCHAR);
+				pendingTransitions = new ArrayList<>();
+			}
 			for (TariffPlan tariffPlan : tariffPlans) {
 				if (! result.containsKey(tariffPlan)) {
 					StoredProcedureQuery query = entityManager.createNamedStoredProcedureQuery("TariffPlanChangeRelation.getByTPandCounter");
@@ -214,18 +576,32 @@ public class Processor {
 					query.setParameter("p_date_start",   Timestamp.valueOf(dateStart));
 					List<TariffPlanChangeRelation> list = query.getResultList();
 					for (TariffPlanChangeRelation changeRelation : list) {
-						if (! tariffPlanChangeRelations.contains(changeRelation)) {
-							updateTransition(changeRelation, counterCode, function, changeRules);
-							tariffPlanChangeRelations.add(changeRelation);
+						if (tariffPlanChangeRelations.add(changeRelation.getTariffPlanChangeId())) {
+							updateTransition(changeRelation, counterCode, function, changeRules, tariffPlan);
 						}
 					}
 				}
 			}
+			flushTransitions();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return -113;
 		} finally {
 			if (updateTransitionStatement != null) {
+				try {
+					//то, что успели поставить в пакет до ошибки, выполняем, как и при вызовах по одному
+					flushTransitions();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+				if (transitionBatch != null) {
+					try {
+						transitionBatch.close();
+					} catch (SQLException ignore) {} finally {
+						transitionBatch = null;
+						pendingTransitions = null;
+					}
+				}
 				try {
 					updateTransitionStatement.close();
 				} catch (SQLException ignore) {} finally {
@@ -237,7 +613,7 @@ public class Processor {
 	}
 
 	private int updateTransition(List<TariffPlan> tariffPlans, String counterCode, LocalDateTime dateStart, String functionFrom, String functionTo, Integer changeRules, Result<TariffPlan, ResultCode> result) {
-		tariffPlanChangeRelations = new ArrayList();
+		tariffPlanChangeRelations = new HashSet<>();
 		updateTransition(tariffPlans, 0, counterCode, dateStart, functionTo, changeRules);
 		updateTransition(tariffPlans, 1, counterCode, dateStart, functionFrom, changeRules);
 		tariffPlanChangeRelations = null;
@@ -263,6 +639,14 @@ public class Processor {
 				             (functionTo == null || functionTo.isEmpty() ? "" : ("functionTo='" + functionTo + "', ")) +
 		                     "changeRules=" + changeRules;
 		start("addCounter", description);
+		execute(tariffPlans, (processor, part) -> processor.addCounters(counterCode, serviceCode, serviceGroup, part, dateStart));
+		//переходы одного отношения находятся и со стороны старого, и со стороны нового ТП - обновляем в одном потоке
+		updateTransition(tariffPlans, counterCode, dateStart, functionFrom, functionTo, changeRules, result);
+		finish();
+		return 0;
+	}
+
+	private int addCounters(String counterCode, String serviceCode, String serviceGroup, List<TariffPlan> tariffPlans, LocalDateTime dateStart) {
 		for (TariffPlan tariffPlan : tariffPlans) {
 			Integer ret = addCounter(tariffPlan, counterCode, serviceCode, serviceGroup, dateStart);
 			if (ret != 0) {
@@ -272,71 +656,284 @@ public class Processor {
 				}
 			}
 		}
-		updateTransition(tariffPlans, counterCode, dateStart, functionFrom, functionTo, changeRules, result);
-		finish();
 		return 0;
 	}
 
-	private void updatePrice(NetworkServicePrice price, LocalDateTime dateStart, String description, ComponentParameters componentParameters, String change, boolean replaceLog) throws SQLException {
-		priceUpdateStatement.setInt(1, price.getPriceId());
-		priceUpdateStatement.setTimestamp(2, dateStart != null ? Timestamp.valueOf(dateStart) : null);
-		priceUpdateStatement.setString(3, description);
-		priceUpdateStatement.setString(4, componentParameters.serialize());
-		priceUpdateStatement.setString(5, componentParameters.toString());
-		priceUpdateStatement.setString(6, change);
-		priceUpdateStatement.setInt(7, replaceLog ? 1 : 0);
+	private void updatePrice(NetworkServicePrice price, LocalDateTime dateStart, String description, ComponentParameters componentParameters, String change, boolean replaceLog, Runnable applied) throws SQLException {
+		//обе формы пишем сериализаторами прямо в буферы параметров, без промежуточных строк
+		CallBatch.Text unparsed = new CallBatch.Text();
+		CallBatch.Text parsed = new CallBatch.Text();
+		try {
+			componentParameters.serialize(unparsed);
+			componentParameters.writeJSONString(parsed);
+		} catch (IOException e) {
+			throw new SQLException(e);
+		}
+		updatePrice(price, dateStart, description, unparsed, parsed, change, replaceLog, applied);
+	}
+
+	/**
+	 * Выполняет rdp.update_price или, если открыт пакет, добавляет вызов в него.
+	 * unparsed и parsed - String или CallBatch.Text.
+	 * applied (изменение модели цены) выполняется только после успешного вызова.
+	 */
+	private void updatePrice(NetworkServicePrice price, LocalDateTime dateStart, String description, Object unparsed, Object parsed, String change, boolean replaceLog, Runnable applied) throws SQLException {
+		Object values[] = {price.getPriceId(), dateStart != null ? Timestamp.valueOf(dateStart) : null, description, unparsed, parsed, change, replaceLog ? 1 : 0};
+		if (priceBatch != null) {
+			priceBatch.add(price, applied, values);
+			return;
+		}
+		//CLOB-тексты передаются setString/setCharacterStream, без временных LOB
+		CallBatch.bind(priceUpdateStatement, 1, PRICE_UPDATE_TYPES, values);
 		priceUpdateStatement.execute();
+		if (applied != null) {
+			applied.run();
+		}
 	}
 
-	private int updatePrice(NetworkServicePrice price, LocalDateTime dateStart, JSONObject change) throws SQLException {
-		String description = "RD-MultiEditor";
-		ComponentParameters parameters = RatingComponentFactory.createComponentParameters(price.getProgramId());
+	/**
+	 * Цена, разобранная и измененная до вызова rdp.update_price.
+	 */
+	private static class PriceUpdate {
+		NetworkServicePrice price;
+		ComponentParameters parameters;
+		boolean dirty;
+		String change;
+		//null - CLOB пишутся потоком из parameters
+		String unparsed;
+		String parsed;
+	}
+
+	/**
+	 * Разбирает цену и применяет к ней change; БД не использует, поэтому может выполняться в другом потоке.
+	 */
+	private static PriceUpdate prepareUpdate(NetworkServicePrice price, JSONObject change, boolean serialize) {
+		PriceUpdate update = new PriceUpdate();
+		update.price = price;
+		ComponentParameters parameters = componentParameters(price.getProgramId());
 		parameters.parseObject(price.getComponentParameters());
-		String parametersBefore = parameters.serialize();
-		parameters.update(change);
-		String parametersAfter = parameters.serialize();
-		updatePrice(price, dateStart, description, parameters, change.toJSONString(), false);
-		if(change != null && change.size() >= 0 && parametersBefore.equals(parametersAfter)){
+		JSONObject priceChange = change;
+		if(price.getProgramId().equals("PriceTypeExtension")){
+			JSONObject basicNonCall = (JSONObject) parameters.getObject().get("Basic:Non Call Services");
+			if((basicNonCall.containsKey("Version") && !basicNonCall.get("Version").equals("VER:01"))
+					|| (basicNonCall.containsKey("PricePerFact") && basicNonCall.get("PricePerFact") != null && !basicNonCall.get("PricePerFact").equals(""))){
+				//общий change читают и другие цены (и другие потоки) - фильтруем копию
+				priceChange = new JSONObject(change);
+				Iterator it = priceChange.entrySet().iterator();
+				while (it.hasNext())
+				{
+					Map.Entry<String,Object> entry = (Map.Entry<String,Object>) it.next();
+					if(entry.getKey().contains("DynamicPrice")) it.remove();
+				}
+			}
+		}
+		update.dirty = parameters.update(priceChange).isDirty();
+		if (update.dirty) {
+			update.change = priceChange.toJSONString();
+			if (serialize) {
+				update.unparsed = parameters.serialize();
+				update.parsed = parameters.toString();
+			} else {
+				//экземпляр из пула потока: годится, только пока поток не взял следующую цену
+				update.parameters = parameters;
+			}
+		}
+		return update;
+	}
+
+	/**
+	 * ComponentParameters программы для текущего потока: один экземпляр переиспользуется для всех цен программы.
+	 */
+	private static ComponentParameters componentParameters(String programId) {
+		ComponentParameters parameters = PARAMETERS.get().computeIfAbsent(programId, RatingComponentFactory::createComponentParameters);
+		parameters.reset();
+		return parameters;
+	}
+
+	private int updatePrice(PriceUpdate update, LocalDateTime dateStart) throws SQLException {
+		String description = "RD-MultiEditor";
+		NetworkServicePrice price = update.price;
+		if (! update.dirty) {
+			//сохранять нечего - процедуру не вызываем
 			result.put("ТК = " + price.getComponentParametersId(), "Цена не была изменена");
+			return 0;
 		}
+		Runnable applied;
 		if (dateStart == null) {
-			price.setComponentParameters(parameters.toString());
-			price.setComponentUnparsed(parameters.serialize());
+			applied = () -> {
+				price.setComponentParameters(update.parsed);
+				price.setComponentUnparsed(update.unparsed);
+			};
+		} else {
+			applied = () -> price.setEndDate(Timestamp.valueOf(dateStart.minusSeconds(1)));
+		}
+		if (update.unparsed != null) {
+			updatePrice(price, dateStart, description, update.unparsed, update.parsed, update.change, false, applied);
 		} else {
-			price.setEndDate(Timestamp.valueOf(dateStart.minusSeconds(1)));
+			updatePrice(price, dateStart, description, update.parameters, update.change, false, applied);
 		}
 		return 0;
 	}
 
+	/**
+	 * Вызовы rdp.update_price, отправляемые одним PL/SQL-блоком (см. CallBatch). Ошибки строк попадают в result
+	 * по цене, изменения модели выполняются после отправки пакета.
+	 */
+	private class PriceBatch {
+
+		private final List<NetworkServicePrice> prices = new ArrayList<>();
+		private final List<Runnable> applied = new ArrayList<>();
+
+		private final CallBatch calls = new CallBatch(jdbcConnection, "rdp.update_price", batchSize, PRICE_UPDATE_TYPES);
+
+		void add(NetworkServicePrice price, Runnable action, Object... values) throws SQLException {
+			calls.add(values);
+			prices.add(price);
+			applied.add(action);
+			if (prices.size() >= batchSize) {
+				flush();
+			}
+		}
+
+		void flush() throws SQLException {
+			if (prices.isEmpty()) return;
+			try {
+				calls.execute();
+				for (Runnable action : applied) {
+					if (action != null) action.run();
+				}
+			} catch (BatchUpdateException e) {
+				//Строки до упавшей выполнены, упавшая и следующие за ней - нет
+				int counts[] = e.getUpdateCounts();
+				for (int i = 0; i < prices.size(); i++) {
+					if (counts != null && i < counts.length && counts[i] != Statement.EXECUTE_FAILED) {
+						if (applied.get(i) != null) applied.get(i).run();
+					} else {
+						result.put(prices.get(i), e.getMessage());
+						failedPrices.add(prices.get(i).getPriceId());
+					}
+				}
+				throw e;
+			} finally {
+				prices.clear();
+				applied.clear();
+			}
+		}
+
+		void close() throws SQLException {
+			calls.close();
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Сколько вызовов rdp.update_price (а также rdp.update_tpcr_params и rdp.add_change_relation)
+	 * отправлять за один раз одним анонимным PL/SQL-блоком
+	 * (одно обращение к БД на блок); 1 и меньше - по одному, как раньше.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	private void openPriceBatch() {
+		priceBatch = batchSize > 1 ? new PriceBatch() : null;
+	}
+
+	private void closePriceBatch() throws SQLException {
+		PriceBatch batch = priceBatch;
+		priceBatch = null;
+		if (batch != null) {
+			try {
+				batch.flush();
+			} finally {
+				batch.close();
+			}
+		}
+	}
+
 	public int updatePrice(List<NetworkServicePrice> prices, LocalDateTime dateStart, JSONObject params) {
 		if (prices.isEmpty()) return 0;
 		NetworkServicePrice first = prices.get(0);
 		ComponentParametersMapper mapper = RatingComponentFactory.createComponentParametersMapper(first.getProgramId());
 		JSONObject change = mapper.decode(params);
 		start("updatePrice", null);
+		int ret = -100;
+		try {
+			List<Integer> ids = new ArrayList<>();
+			prices.forEach(price -> ids.add(price.getPriceId()));
+			openJournal(prices, "updatePrice", dateStart, change.toJSONString(), ids);
+			ret = execute(prices, (processor, part) -> processor.updatePrices(part, dateStart, change, prices.size()));
+			return ret;
+		} finally {
+			finish();
+			//журнал удаляем только после успешного завершения всей операции
+			closeJournal(ret == 0);
+		}
+	}
+
+	/**
+	 * Цена уже зафиксирована до сбоя (см. setJournalDirectory).
+	 */
+	private boolean isJournaled(NetworkServicePrice price) {
+		return journal != null && journal.isDone(price.getPriceId());
+	}
+
+	private int updatePrices(List<NetworkServicePrice> prices, LocalDateTime dateStart, JSONObject change, int total) {
+		ExecutorService preparation = null;
+		List<Integer> chunk = new ArrayList<>();
+		failedPrices.clear();
 		try {
 			jdbcConnection = entityManager.unwrap(Connection.class);
 			priceUpdateStatement = jdbcConnection.prepareCall("{ call rdp.update_price(?,?,?,?,?,?,?) }");
+			openPriceBatch();
+			if (pipelineDepth > 0) {
+				preparation = Executors.newFixedThreadPool(Math.min(pipelineDepth, Runtime.getRuntime().availableProcessors()));
+			}
 			int count = 0;
-			int total = prices.size();
-			for (NetworkServicePrice price : prices) {
-				if(price.getProgramId().equals("PriceTypeExtension")){
-					ComponentParameters priceParameters = RatingComponentFactory.createComponentParameters(price.getProgramId());
-					priceParameters.parseObject(price.getComponentParameters());
-					JSONObject basicNonCall = (JSONObject) priceParameters.getObject().get("Basic:Non Call Services");
-					if((basicNonCall.containsKey("Version") && !basicNonCall.get("Version").equals("VER:01"))
-							|| (basicNonCall.containsKey("PricePerFact") && basicNonCall.get("PricePerFact") != null && !basicNonCall.get("PricePerFact").equals(""))){
-						Iterator it = change.entrySet().iterator();
-						while (it.hasNext())
-						{
-							Map.Entry<String,Object> entry = (Map.Entry<String,Object>) it.next();
-							if(entry.getKey().contains("DynamicPrice")) it.remove();
+			Deque<Future<PriceUpdate>> pending = new ArrayDeque<>();
+			Iterator<NetworkServicePrice> iterator = prices.iterator();
+			while (iterator.hasNext() || ! pending.isEmpty()) {
+				PriceUpdate update = null;
+				if (preparation == null) {
+					NetworkServicePrice price = iterator.next();
+					if (isJournaled(price)) {
+						progressProperty.accept(++count, total);
+					} else {
+						update = prepareUpdate(price, change, dateStart == null);
+					}
+				} else {
+					//готовим не больше pipelineDepth цен вперед, пока текущая пишется в БД
+					while (pending.size() < pipelineDepth && iterator.hasNext()) {
+						NetworkServicePrice price = iterator.next();
+						if (isJournaled(price)) {
+							progressProperty.accept(++count, total);
+						} else {
+							pending.add(preparation.submit(() -> prepareUpdate(price, change, true)));
 						}
 					}
+					if (! pending.isEmpty()) {
+						update = pending.poll().get();
+					}
+				}
+				if (update == null) {
+					continue;
+				}
+				updatePrice(update, dateStart);
+				if (commitInterval > 0) {
+					chunk.add(update.price.getPriceId());
+					if (chunk.size() >= commitInterval) {
+						checkpoint(chunk);
+					}
 				}
-				updatePrice(price, dateStart, change);
 				progressProperty.accept(++count, total);
 			}
+			if (! chunk.isEmpty()) {
+				checkpoint(chunk);
+			}
+			closePriceBatch();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return -113;
@@ -344,6 +941,25 @@ public class Processor {
 			th.printStackTrace();
 			return -100;
 		} finally {
+			if (preparation != null) {
+				preparation.shutdownNow();
+			}
+			try {
+				//то, что успели поставить в пакет до ошибки, выполняем, как и при вызовах по одному
+				closePriceBatch();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			if (! chunk.isEmpty()) {
+				//после ошибки все выполненное зафиксирует finish - фиксируем и отмечаем в журнале сейчас,
+				//без цен, вызовы которых упали или не выполнялись, чтобы журнал совпадал с БД
+				chunk.removeIf(failedPrices::contains);
+				try {
+					checkpoint(chunk);
+				} catch (SQLException | IOException | RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
 			if (priceUpdateStatement != null) {
 				try {
 					priceUpdateStatement.close();
@@ -351,7 +967,6 @@ public class Processor {
 					priceUpdateStatement = null;
 				}
 			}
-			finish();
 		}
 		return 0;
 	}
@@ -420,6 +1035,14 @@ public class Processor {
 
 	public int replicateTimeSchema(List<TimeSchema> timeSchemaList, LocalDateTime dateStart, List<TariffPlan> tariffPlans) {
 		start("replicateTimeSchema", null);
+		try {
+			return execute(tariffPlans, (processor, part) -> processor.replicateTimeSchemas(part, timeSchemaList, dateStart));
+		} finally {
+			finish();
+		}
+	}
+
+	private int replicateTimeSchemas(List<TariffPlan> tariffPlans, List<TimeSchema> timeSchemaList, LocalDateTime dateStart) {
 		try {
 			jdbcConnection = entityManager.unwrap(Connection.class);
 			timeSchemaReplicateStatement = jdbcConnection.prepareCall("{ call rdp.replicate_time_schema(?,?,?) }");
@@ -447,7 +1070,6 @@ public class Processor {
 					timeSchemaReplicateStatement = null;
 				}
 			}
-			finish();
 		}
 		return 0;
 	}
@@ -461,23 +1083,48 @@ public class Processor {
 		return new TransitionParameters(transitions);
 	}
 
-	private void addChangeRelation(TariffPlan tariffPlanOld, TariffPlan tariffPlanNew, String transitionParameters, String serviceCode, LocalDateTime dateStart, Integer calcMethod, String channelBan, String serviceBan) throws SQLException {
+	private void addChangeRelation(TariffPlan tariffPlanOld, TariffPlan tariffPlanNew, String transitionParameters, String serviceCode, LocalDateTime dateStart, Integer calcMethod, String channelBan, String serviceBan, TariffPlan target) throws SQLException {
 		String description = "RD-MultiEditor [" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm")) + "]";
-		addChangeRelationStatement.setInt(1, tariffPlanOld.getTariffPlanId());
-		addChangeRelationStatement.setInt(2, tariffPlanNew.getTariffPlanId());
-		addChangeRelationStatement.setString(3, transitionParameters);
-		addChangeRelationStatement.setString(4, serviceCode);
-		addChangeRelationStatement.setTimestamp(5, Timestamp.valueOf(dateStart));
-		addChangeRelationStatement.setString(6, description);
-		addChangeRelationStatement.setInt(7, calcMethod != null ? calcMethod.intValue() : 0);
-		addChangeRelationStatement.setString(8, channelBan);
-		addChangeRelationStatement.setString(9, serviceBan);
-		addChangeRelationStatement.execute();
-	}
-
-	private void addChangeRelation(TariffPlan tariffPlanOld, TariffPlan tariffPlanNew, String serviceCode, LocalDateTime dateStart, Integer calcMethod, String channelBan, String serviceBan) throws SQLException {
+		if (relationBatch != null) {
+			relationBatch.add(tariffPlanOld.getTariffPlanId(), tariffPlanNew.getTariffPlanId(), transitionParameters, serviceCode, Timestamp.valueOf(dateStart),
+					description, calcMethod != null ? calcMethod.intValue() : 0, channelBan, serviceBan);
+			pendingRelations.add(target);
+			if (pendingRelations.size() >= batchSize) {
+				flushRelations();
+			}
+		} else {
+			addChangeRelationStatement.setInt(1, tariffPlanOld.getTariffPlanId());
+			addChangeRelationStatement.setInt(2, tariffPlanNew.getTariffPlanId());
+			addChangeRelationStatement.setString(3, transitionParameters);
+			addChangeRelationStatement.setString(4, serviceCode);
+			addChangeRelationStatement.setTimestamp(5, Timestamp.valueOf(dateStart));
+			addChangeRelationStatement.setString(6, description);
+			addChangeRelationStatement.setInt(7, calcMethod != null ? calcMethod.intValue() : 0);
+			addChangeRelationStatement.setString(8, channelBan);
+			addChangeRelationStatement.setString(9, serviceBan);
+			addChangeRelationStatement.execute();
+		}
+	}
+
+	/**
+	 * Отправляет накопленные вызовы rdp.add_change_relation. Для упавших и неотправленных пар
+	 * в result пишется ошибка по ТП из списка, с которым связывался исходный.
+	 */
+	private void flushRelations() throws SQLException {
+		if (relationBatch == null || relationBatch.isEmpty()) return;
+		List<TariffPlan> targets = new ArrayList<>(pendingRelations);
+		pendingRelations.clear();
+		try {
+			relationBatch.execute();
+		} catch (BatchUpdateException e) {
+			putFailed(targets, e);
+			throw e;
+		}
+	}
+
+	private void addChangeRelation(TariffPlan tariffPlanOld, TariffPlan tariffPlanNew, String serviceCode, LocalDateTime dateStart, Integer calcMethod, String channelBan, String serviceBan, TariffPlan target) throws SQLException {
 		TransitionParameters transitionParameters = generateTransitions(tariffPlanOld, tariffPlanNew, dateStart);
-		addChangeRelation(tariffPlanOld, tariffPlanNew, transitionParameters.toXML(), serviceCode, dateStart, calcMethod, channelBan, serviceBan);
+		addChangeRelation(tariffPlanOld, tariffPlanNew, transitionParameters.toXML(), serviceCode, dateStart, calcMethod, channelBan, serviceBan, target);
 	}
 
 	public int addChangeRelation(TariffPlan tariffPlanOld, List<TariffPlan> tariffPlansTo, String serviceCode, LocalDateTime dateStart, Integer calcMethod, int changeDirection, String channelBan, String serviceBan) {
@@ -486,31 +1133,58 @@ public class Processor {
                              "dateStart='" + dateStart + "', " +
                              "changeDirection=" + changeDirection;
 		start("addChangeRelation", description);
+		try {
+			return execute(tariffPlansTo, (processor, part) -> processor.addChangeRelations(tariffPlanOld, part, serviceCode, dateStart, calcMethod, changeDirection, channelBan, serviceBan));
+		} finally {
+			finish();
+		}
+	}
+
+	private int addChangeRelations(TariffPlan tariffPlanOld, List<TariffPlan> tariffPlansTo, String serviceCode, LocalDateTime dateStart, Integer calcMethod, int changeDirection, String channelBan, String serviceBan) {
 		try {
 			jdbcConnection = entityManager.unwrap(Connection.class);
 			addChangeRelationStatement = jdbcConnection.prepareCall("{ call rdp.add_change_relation(?,?,?,?,?,?,?,?,?) }");
+			if (batchSize > 1) {
+				relationBatch = new CallBatch(jdbcConnection, "rdp.add_change_relation", batchSize, Types.INTEGER, Types.INTEGER, Types.VARCHAR, Types.VARCHAR,
+						Types.TIMESTAMP, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR);
+				pendingRelations = new ArrayList<>();
+			}
 			for (TariffPlan tariffPlanNew : tariffPlansTo) {
 				if (! tariffPlanOld.equals(tariffPlanNew)) {
 					if (changeDirection == 0 || changeDirection == 2) {
-						addChangeRelation(tariffPlanOld, tariffPlanNew, serviceCode, dateStart, calcMethod, channelBan, serviceBan);
+						addChangeRelation(tariffPlanOld, tariffPlanNew, serviceCode, dateStart, calcMethod, channelBan, serviceBan, tariffPlanNew);
 					}
 					if (changeDirection == 1 || changeDirection == 2) {
-						addChangeRelation(tariffPlanNew, tariffPlanOld, serviceCode, dateStart, calcMethod, channelBan, serviceBan);
+						addChangeRelation(tariffPlanNew, tariffPlanOld, serviceCode, dateStart, calcMethod, channelBan, serviceBan, tariffPlanNew);
 					}
 				}
 			}
+			flushRelations();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return -113;
 		} finally {
 			if (addChangeRelationStatement != null) {
+				try {
+					//то, что успели поставить в пакет до ошибки, выполняем, как и при вызовах по одному
+					flushRelations();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+				if (relationBatch != null) {
+					try {
+						relationBatch.close();
+					} catch (SQLException ignore) {} finally {
+						relationBatch = null;
+						pendingRelations = null;
+					}
+				}
 				try {
 					addChangeRelationStatement.close();
 				} catch (SQLException ignore) {} finally {
 					addChangeRelationStatement = null;
 				}
 			}
-			finish();
 		}
 		return 0;
 	}
@@ -527,6 +1201,14 @@ public class Processor {
 	public int changePriority(List<TariffZoneMember> zones, Long priority, LocalDateTime dateStart) {
 		String description = "priority=" + priority;
 		start("changePriority", description);
+		try {
+			return execute(zones, (processor, part) -> processor.changePriorities(part, priority, dateStart));
+		} finally {
+			finish();
+		}
+	}
+
+	private int changePriorities(List<TariffZoneMember> zones, Long priority, LocalDateTime dateStart) {
 		try {
 			jdbcConnection = entityManager.unwrap(Connection.class);
 			changePriorityStatement = jdbcConnection.prepareCall("{ call rdp.change_priority(?,?,?,?) }");
@@ -547,7 +1229,6 @@ public class Processor {
 					changePriorityStatement = null;
 				}
 			}
-			finish();
 		}
 		return 0;
 	}
@@ -569,8 +1250,8 @@ public class Processor {
 		StoredProcedureQuery query = entityManager.createNamedStoredProcedureQuery("TariffZoneRule.findByName");
 		if(tariffZoneName == null) tariffZoneName = "";
 		query.setParameter("p_tariff_zone_rule_name", tariffZoneName);
-		ObservableList<TariffZoneRule> list = FXCollections.observableArrayList(query.getResultList());
-		query.execute();
+		//getResultList сам выполняет процедуру
+		List<TariffZoneRule> list = query.getResultList();
 		TariffZoneRule rule = new TariffZoneRule(null, "");
 		if(list.size() == 1) {
 			rule = list.get(0);
@@ -578,11 +1259,69 @@ public class Processor {
 		return rule;
 	}
 
+	/**
+	 * Правило по имени из кеша операции rules; при tariffZoneRuleTtl больше 0 - еще и из общего кеша,
+	 * пока запись не старше tariffZoneRuleTtl мс. Процедура вызывается один раз на имя.
+	 */
+	private TariffZoneRule findTariffZoneRule(String tariffZoneName, Map<String,TariffZoneRule> rules) {
+		String name = tariffZoneName == null ? "" : tariffZoneName;
+		TariffZoneRule rule = rules.get(name);
+		if (rule != null) {
+			return rule;
+		}
+		long now = System.currentTimeMillis();
+		if (tariffZoneRuleTtl > 0) {
+			CachedRule cached = TARIFF_ZONE_RULES.get(name);
+			if (cached != null && now - cached.loaded < tariffZoneRuleTtl) {
+				rule = cached.rule;
+			}
+		}
+		if (rule == null) {
+			rule = findTariffZoneRule(name);
+			if (tariffZoneRuleTtl > 0) {
+				TARIFF_ZONE_RULES.put(name, new CachedRule(rule, now));
+			}
+		}
+		rules.put(name, rule);
+		return rule;
+	}
+
+	private static class CachedRule {
+		final TariffZoneRule rule;
+		final long loaded;
+
+		CachedRule(TariffZoneRule rule, long loaded) {
+			this.rule = rule;
+			this.loaded = loaded;
+		}
+	}
+
+	public long getTariffZoneRuleTtl() {
+		return tariffZoneRuleTtl;
+	}
+
+	/**
+	 * Сколько мс правила тарифных зон, найденные по имени, используются в следующих операциях;
+	 * 0 - только в пределах одной операции.
+	 */
+	public void setTariffZoneRuleTtl(long tariffZoneRuleTtl) {
+		this.tariffZoneRuleTtl = tariffZoneRuleTtl;
+	}
+
 	public int assignTariffZone(List<TariffZoneMember> zoneMembers, TariffZone tariffZone, LocalDateTime dateStart, TariffZoneExtension extension, Long priority) {
 		String description = "tariffZone=" + tariffZone.getZoneId();
 		start("assignTariffZone", description);
+		//одинаковые пары (calling, called) - в одну часть, иначе проверка DUPLICATE_DATA_ERROR не увидит дубликат из другой
+		execute(zoneMembers, zoneMember -> Arrays.asList(zoneMember.getCallingGroupId(), zoneMember.getCalledGroupId()),
+				(processor, part) -> processor.assignTariffZones(part, tariffZone, dateStart, extension, priority));
+		finish();
+		return 0;
+	}
+
+	private int assignTariffZones(List<TariffZoneMember> zoneMembers, TariffZone tariffZone, LocalDateTime dateStart, TariffZoneExtension extension, Long priority) {
+		Map<String,TariffZoneRule> rules = new HashMap<>();
 		for (TariffZoneMember zoneMember : zoneMembers) {
-			Integer ret = assignTariffZone(zoneMember.getCallingGroupId(), zoneMember.getCalledGroupId(), tariffZone.getZoneId(), dateStart, findTariffZoneRule(zoneMember.getRule()), extension != null ? extension.getRuleId() : null, extension != null ? priority : null);
+			Integer ret = assignTariffZone(zoneMember.getCallingGroupId(), zoneMember.getCalledGroupId(), tariffZone.getZoneId(), dateStart, findTariffZoneRule(zoneMember.getRule(), rules), extension != null ? extension.getRuleId() : null, extension != null ? priority : null);
 			if (ret != 0) {
 				if(ret == ResultCode.TARIFF_ZONE_ASSIGNED.getResultCode())
 				result.put(new Object() {
@@ -608,101 +1347,131 @@ public class Processor {
 
 			}
 		}
-		finish();
 		return 0;
 	}
 
-	private List<NetworkServicePrice> getNetworkServicePrices(Integer timeSchemaNew) {
-		List<NetworkServicePrice> list = new ArrayList<>();
-		ResultSet set = null;
-		try{
-			jdbcConnection = entityManager.unwrap(Connection.class);
-			getPricesStatement = jdbcConnection.prepareCall("{ call rdm.get_prices_for_schema(?,?) }");
-			getPricesStatement.registerOutParameter(1, OracleTypes.CURSOR);
-			getPricesStatement.setInt(2, timeSchemaNew);
-			getPricesStatement.execute();
-			set = (ResultSet) getPricesStatement.getObject(1);
-
-			while(set.next()){
-				Integer priceID =  bigDecimalToInteger((BigDecimal) set.getObject("price_id"));
-				Integer ratingRuleID = bigDecimalToInteger((BigDecimal) set.getObject("rating_rule_id"));
-				Integer networkServiceID = bigDecimalToInteger((BigDecimal) set.getObject("network_service_id"));
-				Integer tariffZoneID = bigDecimalToInteger((BigDecimal) set.getObject("tariff_zone_id"));
-				Integer tariffPlanID = bigDecimalToInteger((BigDecimal) set.getObject("tariff_plan_id"));
-				Integer location = bigDecimalToInteger((BigDecimal) set.getObject("location"));
-				Integer billingServiceID = bigDecimalToInteger((BigDecimal) set.getObject("billing_service_id"));
-				Integer trafficPeriodID = bigDecimalToInteger((BigDecimal) set.getObject("traffic_period_id"));
-				Integer componentID = bigDecimalToInteger((BigDecimal) set.getObject("component_id"));
-				Integer component_parameters_id = bigDecimalToInteger((BigDecimal) set.getObject("component_parameters_id"));
-
-				String zoneCode = getStringFromResultSet((String) set.getObject("zone_code"));
-				String billingServiceName = getStringFromResultSet((String) set.getObject("billing_service_name"));
-				String programID = getStringFromResultSet((String) set.getObject("program_id"));
-				String networkServiceName = getStringFromResultSet((String) set.getObject("network_service_name"));
-				String tariffZoneName = getStringFromResultSet((String) set.getObject("tariff_zone_name"));
-				String tariffPlanName= getStringFromResultSet((String) set.getObject("tariff_plan_name"));
-				String ratingComponentName= getStringFromResultSet((String) set.getObject("rating_component_name"));
-				String trafficPeriodName= getStringFromResultSet((String) set.getObject("traffic_period_name"));
-
-				String componentParameters = clobToString(set.getClob("component_parameters"));
-
-				Timestamp startDate = getTimeStampFromResultSet((Timestamp) set.getObject("start_date"));
-				Timestamp endDate = getTimeStampFromResultSet((Timestamp) set.getObject("end_date"));
-
-				NetworkServicePrice price = new NetworkServicePrice(priceID, ratingRuleID, networkServiceID,
-						tariffZoneID, tariffPlanID, startDate, endDate,
-						location, billingServiceID, billingServiceName, trafficPeriodID,
-						zoneCode, programID, networkServiceName, tariffZoneName,
-						tariffPlanName, componentID, ratingComponentName, trafficPeriodName,
-						component_parameters_id, componentParameters);
-
-				list.add(price);
-			}
+	public int getPriceFetchSize() {
+		return priceFetchSize;
+	}
 
-		} catch (SQLException e) {
-			e.printStackTrace();
-		} catch (Throwable th) {
-			th.printStackTrace();
-		} finally {
-			if (getPricesStatement != null) {
-				try {
-					getPricesStatement.close();
+	/**
+	 * Сколько строк цен получать от БД за одно обращение при чтении курсора цен схемы.
+	 */
+	public void setPriceFetchSize(int priceFetchSize) {
+		this.priceFetchSize = priceFetchSize;
+	}
 
-				} catch (SQLException ignore) {} finally {
-					getPricesStatement = null;
+	/**
+	 * Цены схемы из курсора rdm.get_prices_for_schema, читаемые по одной: в памяти только текущая
+	 * строка, CLOB параметров читается при переходе к ней. Закрывать после использования.
+	 */
+	private class PriceCursor implements AutoCloseable {
+
+		private final CallableStatement statement;
+		private ResultSet set;
+
+		PriceCursor(Integer timeSchema) throws SQLException {
+			jdbcConnection = entityManager.unwrap(Connection.class);
+			statement = jdbcConnection.prepareCall("{ call rdm.get_prices_for_schema(?,?) }");
+			try {
+				statement.registerOutParameter(1, OracleTypes.CURSOR);
+				statement.setInt(2, timeSchema);
+				statement.execute();
+				set = (ResultSet) statement.getObject(1);
+				if (priceFetchSize > 0) {
+					set.setFetchSize(priceFetchSize);
 				}
+			} catch (SQLException | RuntimeException e) {
+				close();
+				throw e;
 			}
+		}
+
+		/**
+		 * Следующая цена или null, если цен больше нет.
+		 */
+		NetworkServicePrice next() throws SQLException {
+			if (! set.next()) {
+				return null;
+			}
+			Integer priceID =  bigDecimalToInteger((BigDecimal) set.getObject("price_id"));
+			Integer ratingRuleID = bigDecimalToInteger((BigDecimal) set.getObject("rating_rule_id"));
+			Integer networkServiceID = bigDecimalToInteger((BigDecimal) set.getObject("network_service_id"));
+			Integer tariffZoneID = bigDecimalToInteger((BigDecimal) set.getObject("tariff_zone_id"));
+			Integer tariffPlanID = bigDecimalToInteger((BigDecimal) set.getObject("tariff_plan_id"));
+			Integer location = bigDecimalToInteger((BigDecimal) set.getObject("location"));
+			Integer billingServiceID = bigDecimalToInteger((BigDecimal) set.getObject("billing_service_id"));
+			Integer trafficPeriodID = bigDecimalToInteger((BigDecimal) set.getObject("traffic_period_id"));
+			Integer componentID = bigDecimalToInteger((BigDecimal) set.getObject("component_id"));
+			Integer component_parameters_id = bigDecimalToInteger((BigDecimal) set.getObject("component_parameters_id"));
+
+			String zoneCode = getStringFromResultSet((String) set.getObject("zone_code"));
+			String billingServiceName = getStringFromResultSet((String) set.getObject("billing_service_name"));
+			String programID = getStringFromResultSet((String) set.getObject("program_id"));
+			String networkServiceName = getStringFromResultSet((String) set.getObject("network_service_name"));
+			String tariffZoneName = getStringFromResultSet((String) set.getObject("tariff_zone_name"));
+			String tariffPlanName= getStringFromResultSet((String) set.getObject("tariff_plan_name"));
+			String ratingComponentName= getStringFromResultSet((String) set.getObject("rating_component_name"));
+			String trafficPeriodName= getStringFromResultSet((String) set.getObject("traffic_period_name"));
+
+			String componentParameters = clobToString(set.getClob("component_parameters"));
+
+			Timestamp startDate = getTimeStampFromResultSet((Timestamp) set.getObject("start_date"));
+			Timestamp endDate = getTimeStampFromResultSet((Timestamp) set.getObject("end_date"));
+
+			return new NetworkServicePrice(priceID, ratingRuleID, networkServiceID,
+					tariffZoneID, tariffPlanID, startDate, endDate,
+					location, billingServiceID, billingServiceName, trafficPeriodID,
+					zoneCode, programID, networkServiceName, tariffZoneName,
+					tariffPlanName, componentID, ratingComponentName, trafficPeriodName,
+					component_parameters_id, componentParameters);
+		}
+
+		@Override
+		public void close() {
 			if (set != null) {
 				try {
 					set.close();
-
 				} catch (SQLException ignore) {} finally {
 					set = null;
 				}
 			}
+			try {
+				statement.close();
+			} catch (SQLException ignore) {}
 		}
-			return list;
 	}
 
-	private String clobToString(Clob data) {
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Текст CLOB без изменений (включая переводы строк). Короткий CLOB читается одним getSubString,
+	 * длинный - потоком блоками в буфер заранее известного размера.
+	 */
+	static String clobToString(Clob data) {
+		StringBuilder sb = null;
 		try {
 			if (null != data) {
-				Reader reader = data.getCharacterStream();
-				BufferedReader br = new BufferedReader(reader);
-
-				String line;
-				while(null != (line = br.readLine())) {
-					sb.append(line);
+				long length = data.length();
+				if (length == 0) {
+					return "";
+				}
+				if (length <= CLOB_SUBSTRING_LENGTH) {
+					return data.getSubString(1, (int) length);
+				}
+				sb = new StringBuilder((int) Math.min(length, Integer.MAX_VALUE - 8));
+				char buffer[] = new char[CLOB_BUFFER_SIZE];
+				try (Reader reader = data.getCharacterStream()) {
+					int read;
+					while ((read = reader.read(buffer)) != -1) {
+						sb.append(buffer, 0, read);
+					}
 				}
-				br.close();
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return sb.toString();
+		return sb == null ? "" : sb.toString();
 	}
 
 	private Integer bigDecimalToInteger(BigDecimal data) {
@@ -740,12 +1509,15 @@ public class Processor {
 
 
 
-	private String checkAllowed(Migration service, List<NetworkServicePrice> list) {
-		for (NetworkServicePrice price : list) {
-			String cp = price.getComponentParameters();
-			if (cp == null || cp.isEmpty()) continue;
-			String result = service.checkAllowed((JSONObject) JSONValue.parse(cp));
-			if (result != null) return result;
+	private String checkAllowed(Migration service, Integer timeSchema) throws SQLException {
+		try (PriceCursor cursor = new PriceCursor(timeSchema)) {
+			NetworkServicePrice price;
+			while ((price = cursor.next()) != null) {
+				String cp = price.getComponentParameters();
+				if (cp == null || cp.isEmpty()) continue;
+				String result = service.checkAllowed((JSONObject) JSONValue.parse(cp));
+				if (result != null) return result;
+			}
 		}
 		return null;
 	}
@@ -753,15 +1525,18 @@ public class Processor {
 	private int migrateTimeSchema(Migration service, Integer componentNew, TimeSchema timeSchema, LocalDateTime dateStart) throws SQLException {
 		String description = "RD-MultiEditor";
 		Integer timeSchemaNew = splitTimeSchema(timeSchema, dateStart, componentNew);
-		List<NetworkServicePrice> list = getNetworkServicePrices(timeSchemaNew);
-		if (! list.isEmpty()) {
-			ComponentParameters parameters = RatingComponentFactory.createComponentParameters(list.get(0).getProgramId());
-			for (NetworkServicePrice price : list) {
+		try (PriceCursor cursor = new PriceCursor(timeSchemaNew)) {
+			ComponentParameters parameters = null;
+			NetworkServicePrice price;
+			while ((price = cursor.next()) != null) {
+				if (parameters == null) {
+					parameters = componentParameters(price.getProgramId());
+				}
 				String cp = price.getComponentParameters();
 				if (cp == null || cp.isEmpty()) continue;
 				try {
 					parameters.setObject(service.migrateData((JSONObject) JSONValue.parse(cp)));
-					updatePrice(price, null, description, parameters, null, true);
+					updatePrice(price, null, description, parameters, null, true, null);
 				} catch (MigrationException e) {
 					e.printStackTrace();
 					result.put(price, e.getMessage());
@@ -780,15 +1555,13 @@ public class Processor {
 		try {
 			jdbcConnection = entityManager.unwrap(Connection.class);
 			priceUpdateStatement = jdbcConnection.prepareCall("{ call rdp.update_price(?,?,?,?,?,?,?) }");
+			openPriceBatch();
 			for (TimeSchema timeSchema : timeSchemaList) {
-				List<NetworkServicePrice> list = getNetworkServicePrices(timeSchema.getRatingRuleId());
-				if (!list.isEmpty()) {
-				String checkResult = checkAllowed(service, list);
-					if (checkResult != null) {
+				String checkResult = checkAllowed(service, timeSchema.getRatingRuleId());
+				if (checkResult != null) {
 					result.put(timeSchema, checkResult);
 					continue;
 				}
-				}
 				if (!isTimeSchemaEmpty(timeSchema, dateStart)) {
 					result.put(timeSchema, "Цена на выбранную дату уже назначена");
 				}else{
@@ -798,12 +1571,19 @@ public class Processor {
 					}
 				}
 			}
+			closePriceBatch();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return -113;
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		} finally {
+			try {
+				//то, что успели поставить в пакет до ошибки, выполняем, как и при вызовах по одному
+				closePriceBatch();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
 			if (priceUpdateStatement != null) {
 				try {
 					priceUpdateStatement.close();
@@ -0,0 +1,77 @@
+package com.mts.rating.component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общий на процесс кеш RatingComponent по programId: шаблон .tpl читается и компилируется
+ * один раз, дальше экземпляр (он неизменяемый) используется всеми потоками.
+ * Шаблоны перечитываются только явным {@link #reload()}.
+ */
+public final class RatingComponentRegistry {
+
+	/**
+	 * Программы, шаблоны которых загружаются при старте.
+	 */
+	public final static List<String> PROGRAMS = Collections.unmodifiableList(Arrays.asList(
+			"ItemCharging", "DurationCharging", "VolumeCharging", "PriceTypeExtension", "CallServices", "MTSData",
+			"MTSOnlyPrice", "CallWithExtendedServices", "FFWithPriorityRulesAdvanced"));
+
+	private final static Map<String,RatingComponent> COMPONENTS = new ConcurrentHashMap<>();
+
+	private RatingComponentRegistry() {
+	}
+
+	public static RatingComponent get(String programId) {
+		return COMPONENTS.computeIfAbsent(programId, RatingComponent::new);
+	}
+
+	/**
+	 * Загружает шаблоны PROGRAMS параллельно. Вызывается при старте приложения.
+	 */
+	public static void preload() {
+		preload(PROGRAMS);
+	}
+
+	/**
+	 * Загружает шаблоны programIds параллельно. Шаблон, который не удалось загрузить,
+	 * пропускается: ошибка повторится при первом обращении к программе.
+	 */
+	public static void preload(Collection<String> programIds) {
+		programIds.parallelStream().forEach(programId -> {
+			try {
+				get(programId);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Перечитывает шаблоны всех загруженных программ, например после изменения .tpl.
+	 * Новый экземпляр заменяет старый только после успешной компиляции; вызовы,
+	 * уже получившие старый экземпляр, дорабатывают с ним.
+	 */
+	public static void reload() {
+		List<String> programIds = new ArrayList<>(COMPONENTS.keySet());
+		programIds.parallelStream().forEach(programId -> {
+			try {
+				reload(programId);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	public static RatingComponent reload(String programId) {
+		RatingComponent component = new RatingComponent(programId);
+		COMPONENTS.put(programId, component);
+		return component;
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.mts.rating.component;
+
+import com.mts.rating.component.TemplateNode.*;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Строит дерево {@link TemplateNode} по шаблону .tpl. Используется только в конструкторе
+ * {@link RatingComponent}, сам шаблон после компиляции не хранится.
+ */
+class TemplateCompiler {
+
+	private final String programId;
+	private final JSONObject template;
+	private final JSONObject include;
+	private final Map<JSONObject,ObjectNode> compiled = new IdentityHashMap<>();
+
+	TemplateCompiler(String programId, JSONObject template) {
+		this.programId = programId;
+		this.template = template;
+		this.include = (JSONObject) template.get("include");
+	}
+
+	TemplateNode compile() {
+		String type = (String) template.get("type");
+		if (type != null && type.equals("extension")) {
+			Map<String,ObjectNode> sections = new HashMap<>();
+			for (Entry<String,Object> entry : include.entrySet()) {
+				sections.put(entry.getKey(), compileObject((JSONObject) entry.getValue()));
+			}
+			return new ExtensionNode(template, sections);
+		}
+		return compileObject(template);
+	}
+
+	private JSONObject resolve(JSONObject template) {
+		if (template.size() == 1 && include != null && include.containsKey(template.get("name"))) {
+			return (JSONObject) include.get(template.get("name"));
+		}
+		return template;
+	}
+
+	private TemplateNode compileItem(JSONObject template) {
+		String type = (String) template.getOrDefault("type", "object");
+		switch (type) {
+		case "object":
+			return compileObject(template);
+		case "array":
+			return compileArray(template);
+		case "array-object":
+			return new ArrayObjectNode(template, compileObject(template));
+		case "string":
+			return new StringNode(template);
+		case "integer":
+		case "long":
+			return new LongNode(template);
+		case "boolean":
+			return new BooleanNode(template);
+		case "decimal":
+			return new DecimalNode(template);
+		case "decimal-million":
+			return new DecimalMillionNode(template);
+		default:
+			return new UnknownNode(template);
+		}
+	}
+
+	private ObjectNode compileObject(JSONObject template) {
+		template = resolve(template);
+		ObjectNode node = compiled.get(template);
+		if (node != null) {
+			return node;
+		}
+		node = new ObjectNode(template);
+		compiled.put(template, node);
+		JSONArray objects = (JSONArray) template.get("objects");
+		int count = objects != null ? objects.size() : 0;
+		TemplateNode children[] = new TemplateNode[count];
+		for (int i = 0; i < count; i++) {
+			TemplateNode part = compileItem(resolve((JSONObject) objects.get(i)));
+			if ("Thresholds".equals(part.name) && programId.equals("PriceTypeExtension") && include.containsKey("ThresholdsVer00")) {
+				part = new ThresholdsNode(part, compileItem((JSONObject) include.get("ThresholdsVer00")));
+			}
+			children[i] = part;
+		}
+		node.children = children;
+		node.limit = count;
+		return node;
+	}
+
+	private ArrayNode compileArray(JSONObject template) {
+		JSONObject object = (JSONObject) template.get("object");
+		TemplateNode element = compileItem(object);
+		TemplateNode serializer = element;
+		String name = (String) template.get("name");
+		if (programId.equals("DurationCharging") && ("SpendingIntervals".equals(name) || "AccumulationIntervals".equals(name))) {
+			//Интервалы в CLOB пишутся как WeekDay@TimeFrom@TimeTo независимо от шаблона элемента
+			object = new JSONObject(object);
+			object.remove("name");
+			object.put("delimiter", "@");
+			JSONArray objects =	new JSONArray();
+
+			JSONObject weekDay = new JSONObject();
+			weekDay.put("name", "WeekDay");
+			weekDay.put("type", "integer");
+
+			JSONObject timeFrom = new JSONObject();
+			timeFrom.put("name", "TimeFrom");
+			timeFrom.put("type", "string");
+
+			JSONObject timeTo = new JSONObject();
+			timeTo.put("name", "TimeTo");
+			timeTo.put("type", "integer");
+
+			objects.add(weekDay);
+			objects.add(timeFrom);
+			objects.add(timeTo);
+
+			object.put("objects", objects);
+			serializer = compileItem(object);
+		}
+		return new ArrayNode(template, element, serializer);
+	}
+
+}
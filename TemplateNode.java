@@ -0,0 +1,511 @@
+package com.mts.rating.component;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Скомпилированный узел шаблона .tpl. Дерево узлов строится один раз в конструкторе
+ * {@link RatingComponent}: include уже подставлены, тип и разделители прочитаны,
+ * поэтому parse/serialize не обращаются к JSONObject шаблона.
+ * <p>
+ * Разбор идет по исходной строке CLOB: узел получает границы [start, end) своего фрагмента
+ * и ищет в них свой разделитель, строки создаются только для листовых значений.
+ */
+abstract class TemplateNode {
+
+	final String name;
+	final boolean versioned;
+	final Object version;
+
+	TemplateNode(JSONObject template) {
+		this.name = (String) template.get("name");
+		this.versioned = template.containsKey("version");
+		this.version = template.get("version");
+	}
+
+	TemplateNode(TemplateNode node) {
+		this.name = node.name;
+		this.versioned = node.versioned;
+		this.version = node.version;
+	}
+
+	boolean skip(CodecContext context) {
+		return versioned && ! context.version.equals(version);
+	}
+
+	abstract Object parse(String source, int start, int end, CodecContext context);
+
+	abstract void serialize(Object value, ClobWriter out, CodecContext context) throws IOException;
+
+	static char separator(String delimiter) {
+		return delimiter != null && ! delimiter.isEmpty() ? delimiter.charAt(0) : '\0';
+	}
+
+	static int next(String source, char separator, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (source.charAt(i) == separator) return i;
+		}
+		return end;
+	}
+
+	/**
+	 * Конец фрагмента без пустых хвостовых элементов, как у String.split без limit.
+	 */
+	static int trim(String source, char separator, int start, int end) {
+		while (end > start && source.charAt(end - 1) == separator) {
+			end--;
+		}
+		return end;
+	}
+
+	static class ObjectNode extends TemplateNode {
+
+		final boolean wrapped;
+		final boolean header;
+		final String delimiter;
+		final char separator;
+		TemplateNode children[];
+		int limit;
+
+		ObjectNode(JSONObject template) {
+			super(template);
+			this.wrapped = template.containsKey("wrapped");
+			this.header = template.containsKey("header");
+			this.delimiter = (String) template.get("delimiter");
+			this.separator = separator(delimiter);
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			JSONObject result = new JSONObject();
+			if (wrapped) {
+				if (end - start < 2) throw new StringIndexOutOfBoundsException(end - start - 1);
+				start++;
+				end--;
+			}
+			if (versioned && end - start >= 4 && source.startsWith("VER:", start)) {
+				if (end - start < 6) throw new StringIndexOutOfBoundsException(6);
+				result.put("Version", context.version = source.substring(start, start + 6));
+				start += 6;
+			}
+			if (header) {
+				int pos = next(source, '=', start, end);
+				if (pos < end) {
+					result.put("Header", source.substring(start, pos));
+					start = pos + 1;
+				}
+			}
+			//Не больше limit частей, последняя забирает остаток строки (как split с limit)
+			for (int i = 0, k = 0, from = start; ; i++, k++) {
+				int to = i == limit - 1 ? end : next(source, separator, from, end);
+				TemplateNode part = children[k];
+				while (part.skip(context)) {
+					part = children[++k];
+				}
+				result.put(part.name, part.parse(source, from, to, context));
+				if (to == end) break;
+				from = to + 1;
+			}
+			return result;
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			JSONObject object = (JSONObject) value;
+			if (wrapped) out.append("{");
+			if (versioned && object.containsKey("Version")) out.append(context.version = (String) object.get("Version"));
+			if (header && object.containsKey("Header")) out.append(String.valueOf(object.get("Header"))).append("=");
+			boolean first = true;
+			for (TemplateNode part : children) {
+				if (part.skip(context)) continue;
+				Object next = object.get(part.name);
+				if (next == null) {
+					break;
+				}
+				if (first) {
+					first = false;
+				} else {
+					out.append(delimiter);
+				}
+				part.serialize(next, out, context);
+			}
+			if (wrapped) out.append("}");
+		}
+	}
+
+	static class ExtensionNode extends TemplateNode {
+
+		final boolean wrapped;
+		final boolean header;
+		final String delimiter;
+		final char separator;
+		final char wrapperIn;
+		final char wrapperOut;
+		final Map<String,ObjectNode> sections;
+
+		ExtensionNode(JSONObject template, Map<String,ObjectNode> sections) {
+			super(template);
+			String wrapper = (String) template.get("wrapper");
+			this.wrapped = template.containsKey("wrapped");
+			this.header = template.containsKey("header");
+			this.delimiter = (String) template.get("delimiter");
+			this.separator = separator(delimiter);
+			this.wrapperIn = wrapper.charAt(0);
+			this.wrapperOut = wrapper.charAt(1);
+			this.sections = sections;
+		}
+
+		/**
+		 * Расширения разделены delimiter или '†' вне обертки; позиция end считается разделителем,
+		 * поэтому последнее расширение разбирается так же, как остальные.
+		 */
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			JSONObject result = new JSONObject();
+			boolean inside = false;
+			for (int i = start, from = start; i <= end; i++) {
+				char chr = i < end ? source.charAt(i) : separator;
+				if (! inside && (chr == separator || chr == '†')) {
+					parseSection(source, from, i, result, context);
+					from = i + 1;
+				} else if (! inside && chr == wrapperIn) {
+					inside = true;
+				} else if (inside && chr == wrapperOut) {
+					inside = false;
+				}
+			}
+			return result;
+		}
+
+		private void parseSection(String source, int start, int end, JSONObject result, CodecContext context) {
+			int pos = next(source, '=', start, end);
+			if (pos == end) throw new ArrayIndexOutOfBoundsException(1);
+			String key = source.substring(start, pos);
+			int type = key.indexOf(':');
+			//как key.split(":")[1]: split отбрасывает пустые хвостовые части
+			if (type < 0 || trim(key, ':', type + 1, key.length()) == type + 1) throw new ArrayIndexOutOfBoundsException(1);
+			int typeEnd = key.indexOf(':', type + 1);
+			String name = key.substring(type + 1, typeEnd < 0 ? key.length() : typeEnd);
+			result.put(key, sections.get(name).parse(source, pos + 1, end, context));
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			JSONObject object = (JSONObject) value;
+			if (wrapped) out.append("{");
+			if (versioned && object.containsKey("Version")) out.append(context.version = (String) object.get("Version"));
+			if (header && object.containsKey("Header")) out.append(String.valueOf(object.get("Header"))).append("=");
+			boolean first = true;
+			for (Entry<String,Object> entry : object.entrySet()) {
+				if (first) {
+					first = false;
+				} else {
+					out.append(delimiter);
+				}
+				String types[] = entry.getKey().split(":");
+				out.append(entry.getKey()).append("=");
+				sections.get(types[1]).serialize(entry.getValue(), out, context);
+			}
+			if (wrapped) out.append("}");
+		}
+	}
+
+	static class ArrayNode extends TemplateNode {
+
+		final String delimiter;
+		final char separator;
+		final TemplateNode element;
+		final TemplateNode serializer;
+
+		ArrayNode(JSONObject template, TemplateNode element, TemplateNode serializer) {
+			super(template);
+			this.delimiter = (String) template.get("delimiter");
+			this.separator = separator(delimiter);
+			this.element = element;
+			this.serializer = serializer;
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			JSONArray result = new JSONArray();
+			end = trim(source, separator, start, end);
+			for (int from = start; from < end; ) {
+				int to = next(source, separator, from, end);
+				result.add(element.parse(source, from, to, context));
+				from = to + 1;
+			}
+			return result;
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			boolean first = true;
+			for (Object obj : (JSONArray) value) {
+				if (first) {
+					first = false;
+				} else {
+					out.append(delimiter);
+				}
+				serializer.serialize(obj, out, context);
+			}
+		}
+	}
+
+	static class ArrayObjectNode extends TemplateNode {
+
+		final String delimiter;
+		final char separator;
+		final ObjectNode row;
+
+		ArrayObjectNode(JSONObject template, ObjectNode row) {
+			super(template);
+			this.delimiter = (String) template.get("delimiter");
+			this.separator = separator(delimiter);
+			this.row = row;
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			JSONArray result = new JSONArray();
+			end = trim(source, separator, start, end);
+			TemplateNode objects[] = row.children;
+			int count = objects.length;
+			for (int from = start; from < end && count > 0; ) {
+				JSONObject object = new JSONObject();
+				for (int k = 0; k < count; k++) {
+					if (from > end) throw new ArrayIndexOutOfBoundsException(k);
+					int to = next(source, separator, from, end);
+					object.put(objects[k].name, objects[k].parse(source, from, to, context));
+					from = to + 1;
+				}
+				result.add(object);
+			}
+			return result;
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			long start = out.length();
+			for (Object obj : (JSONArray) value) {
+				if (out.length() > start) {
+					out.append(delimiter);
+				}
+				row.serialize(obj, out, context);
+			}
+		}
+	}
+
+	/**
+	 * Thresholds в PriceTypeExtension без версии хранятся в старом формате ThresholdsVer00.
+	 */
+	static class ThresholdsNode extends TemplateNode {
+
+		final TemplateNode current;
+		final TemplateNode legacy;
+
+		ThresholdsNode(TemplateNode current, TemplateNode legacy) {
+			super(current);
+			this.current = current;
+			this.legacy = legacy;
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			if (! context.version.isEmpty()) {
+				return current.parse(source, start, end, context);
+			}
+			JSONArray thresholds = (JSONArray) legacy.parse(source, start, end, context);
+			JSONArray encode = new JSONArray();
+			for (Object obj : thresholds) {
+				JSONObject th = (JSONObject) obj;
+				JSONObject threshold = new JSONObject();
+				JSONObject price = new JSONObject();
+				JSONObject pricePerUnit = new JSONObject();
+				threshold.put("Value", th.get("ThresholdValue"));
+				threshold.put("Unit",  th.get("ThresholdUnit"));
+				pricePerUnit.put("Price", th.get("PricePerUnit"));
+				pricePerUnit.put("Unit",  th.get("PriceUnit"));
+				price.put("PricePerUnit", pricePerUnit);
+				JSONObject thresholNew = new JSONObject();
+				thresholNew.put("Threshold", threshold);
+				thresholNew.put("Price", price);
+				encode.add(thresholNew);
+			}
+			return encode;
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			if (! context.version.isEmpty()) {
+				current.serialize(value, out, context);
+				return;
+			}
+			JSONArray thresholds = (JSONArray) value;
+			JSONArray encode = new JSONArray();
+			for (Object obj1 : thresholds) {
+				JSONObject th = (JSONObject) obj1;
+				JSONObject threshold = (JSONObject) th.get("Threshold");
+				JSONObject price = (JSONObject) th.get("Price");
+				JSONObject pricePerFact = new JSONObject();
+				if(price.containsKey("PricePerFact") && price.get("PricePerFact") != null) pricePerFact.put("Price", price.get("PricePerFact"));
+				else pricePerFact.put("Price", ((JSONObject)price.get("PricePerUnit")).get("Price"));
+				JSONObject pricePerUnit = (JSONObject) price.get("PricePerUnit");
+				pricePerFact.put("Unit", pricePerUnit.get("Unit"));
+				JSONObject th1 = new JSONObject();
+				th1.put("ThresholdValue", threshold.get("Value"));
+				th1.put("ThresholdUnit", threshold.get("Unit"));
+				if(pricePerFact.get("Price").equals(0.0)) th1.put("PricePerUnit", pricePerUnit.get("Price"));
+				else th1.put("PricePerUnit", pricePerFact.get("Price"));
+				th1.put("PriceUnit", pricePerFact.get("Unit"));
+				encode.add(th1);
+			}
+			legacy.serialize(encode, out, context);
+		}
+	}
+
+	static class StringNode extends TemplateNode {
+
+		StringNode(JSONObject template) {
+			super(template);
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			return source.substring(start, end);
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			out.append(value.toString());
+		}
+	}
+
+	static class LongNode extends TemplateNode {
+
+		LongNode(JSONObject template) {
+			super(template);
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			return start == end ? "" : Long.valueOf(source.substring(start, end));
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			out.append(value.toString());
+		}
+	}
+
+	static class BooleanNode extends TemplateNode {
+
+		final JSONArray values;
+
+		BooleanNode(JSONObject template) {
+			super(template);
+			this.values = (JSONArray) template.get("values");
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			if (start == end) return "";
+			Integer value = Integer.valueOf(source.substring(start, end));
+			if (values != null) {
+				Integer value1 = (Integer) values.get(1);
+				return Boolean.valueOf(value == value1);
+			} else {
+				return Boolean.valueOf(value == 1);
+			}
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			if (value instanceof Boolean) {
+				if (values != null) {
+					out.append((Boolean) value ? values.get(1).toString() : values.get(0).toString());
+				} else {
+					out.append((Boolean) value ? "1" : "0");
+				}
+				return;
+			}
+			out.append(value.toString());
+		}
+	}
+
+	static class DecimalNode extends TemplateNode {
+
+		final boolean percent;
+
+		DecimalNode(JSONObject template) {
+			super(template);
+			this.percent = Boolean.TRUE.equals(template.get("percent"));
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			if (start == end) return "";
+			if (! percent || source.charAt(end - 1) != '%') {
+				return DecimalCodec.parse(source, start, end);
+			}
+			JSONObject result = new JSONObject();
+			result.put("value", DecimalCodec.parse(source, start, end - 1));
+			result.put("percent", Boolean.TRUE);
+			return result;
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			if (value instanceof Double) {
+				DecimalCodec.format((Double) value, out);
+			} else if (value instanceof String || value instanceof Long || value instanceof Integer) {
+				out.append(value.toString());
+			} else {
+				JSONObject object = (JSONObject) value;
+				Boolean percent = (Boolean) object.get("percent");
+				DecimalCodec.format((Double) object.get("value"), out);
+				if (percent != null && percent) {
+					out.append("%");
+				}
+			}
+		}
+	}
+
+	static class DecimalMillionNode extends TemplateNode {
+
+		DecimalMillionNode(JSONObject template) {
+			super(template);
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			return start == end ? "" : Double.valueOf(DecimalCodec.parse(source, start, end).doubleValue() / 1000000);
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+			Double val = (Double) value * 1000000;
+			out.append(Long.toString(val.intValue()));
+		}
+	}
+
+	static class UnknownNode extends TemplateNode {
+
+		UnknownNode(JSONObject template) {
+			super(template);
+		}
+
+		@Override
+		Object parse(String source, int start, int end, CodecContext context) {
+			return null;
+		}
+
+		@Override
+		void serialize(Object value, ClobWriter out, CodecContext context) throws IOException {
+		}
+	}
+
+}
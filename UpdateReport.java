@@ -0,0 +1,28 @@
+package com.mts.rating.component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Результат {@link ComponentParameters#update}: какие ключи параметров реально изменились.
+ */
+public class UpdateReport {
+
+	private final List<String> paths = new ArrayList<>();
+
+	public boolean isDirty() {
+		return ! paths.isEmpty();
+	}
+
+	public List<String> getPaths() {
+		return Collections.unmodifiableList(paths);
+	}
+
+	void touch(String path) {
+		if (! paths.contains(path)) {
+			paths.add(path);
+		}
+	}
+
+}